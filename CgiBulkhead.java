@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs CGI invocations on threads of their own, apart from the threads serving
+ * connections, so slow scripts can only use up the bulkhead and never the capacity
+ * static files are served with. At most a fixed number of scripts run at once and a
+ * fixed number wait; past that a request is answered with 503 straight away, and a
+ * request whose script does not answer in time is answered with 504. A thread stays
+ * taken until the script's process exits, even when its output is streamed to the
+ * client from another thread, so the number of threads bounds the scripts running
+ */
+public class CgiBulkhead {
+
+    /**
+     * Builds the response to a request from a script run on the bulkhead
+     */
+    @FunctionalInterface
+    public interface Invocation {
+
+        /**
+         * @param call call the script's process is started through
+         * @return the response
+         * @throws Exception if the response could not be built
+         */
+        Response call(Call call) throws Exception;
+    }
+
+    /**
+     * The process one invocation is running, so it can be killed the moment its request gives up
+     * and waited for before the invocation's thread is given back
+     */
+    public static final class Call {
+
+        private Process process;
+        private boolean abandoned = false;
+
+        /**
+         * Starts the invocation's script
+         * @param builder builder of the script's process
+         * @return the running process
+         * @throws InterruptedIOException if the request has already given up on the script
+         * @throws IOException if the process cannot be started
+         */
+        public synchronized Process start(ProcessBuilder builder) throws IOException {
+            if (abandoned) {
+                throw new InterruptedIOException("CGI request gave up before the script started");
+            }
+            process = builder.start();
+            return process;
+        }
+
+        /**
+         * Ties a process the invocation did not start to it, e.g. a long-lived worker answering it
+         * @param attached the process, or null once the invocation is done with it
+         * @throws InterruptedIOException if the request has already given up on the script
+         */
+        public synchronized void attach(Process attached) throws InterruptedIOException {
+            if (abandoned && attached != null) {
+                throw new InterruptedIOException("CGI request gave up before the script started");
+            }
+            process = attached;
+        }
+
+        /**
+         * Checks whether the request gave up on the script
+         * @return true once the request was answered without it
+         */
+        public synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * Gives up on the script and kills it with every process it started
+         */
+        synchronized void abandon() {
+            abandoned = true;
+            if (process != null) {
+                kill(process);
+            }
+        }
+
+        /**
+         * Waits for the script to exit
+         */
+        void awaitExit() {
+            Process running;
+            synchronized (this) {
+                running = process;
+            }
+            if (running == null) {
+                return;
+            }
+            try {
+                running.waitFor();
+            } catch (InterruptedException e) {
+                //the bulkhead is shutting down
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Threads the invocations run on, with a bounded queue in front of them
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Deadlines that kill scripts running for too long
+     */
+    private final TimerWheel deadlines = new TimerWheel(100, 512);
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder killed = new LongAdder();
+
+    /**
+     * Constructor for the bulkhead
+     * @param threads largest number of scripts run at once
+     * @param queueSize largest number of invocations waiting for a thread
+     */
+    public CgiBulkhead(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "CgiWorker-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        //a queue of size zero hands work straight to a thread or rejects it
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, factory);
+        executor.allowCoreThreadTimeOut(true);
+        deadlines.start("CgiDeadlines");
+    }
+
+    /**
+     * Runs an invocation on the bulkhead and waits for its response. The invocation's thread
+     * is only given back once the process it started has exited
+     * @param invocation runs the script and builds the response
+     * @param timeoutMillis milliseconds the invocation has to start and produce its response
+     * @return the response, or a 503, 504 or 500 response if it could not be produced
+     */
+    public Response run(Invocation invocation, long timeoutMillis) {
+        Call call = new Call();
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    Response response = invocation.call(call);
+                    //nobody is waiting for a response that arrived after its request gave up
+                    if (!result.complete(response)) {
+                        response.closeContent();
+                    }
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+                //the thread is the script's place in the bulkhead, so it is held while the script runs
+                call.awaitExit();
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return status(503);
+        }
+
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //a response finished just too late is still sent
+            if (!result.cancel(false)) {
+                return result.isCompletedExceptionally() ? status(500) : result.join();
+            }
+            //a blocked read of the script's output cannot be interrupted, killing the script ends it
+            call.abandon();
+            future.cancel(true);
+            timedOut.increment();
+            return status(504);
+        } catch (InterruptedException e) {
+            if (!result.cancel(false) && !result.isCompletedExceptionally()) {
+                result.join().closeContent();
+            }
+            call.abandon();
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return status(503);
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return status(500);
+        }
+    }
+
+    /**
+     * Schedules a task that stops a script running for too long
+     * @param kill task stopping the script
+     * @param timeoutMillis milliseconds from now the script may run
+     * @return the scheduled task, cancelled once the script finishes
+     */
+    public TimerWheel.Timeout killAfter(Runnable kill, long timeoutMillis) {
+        return deadlines.schedule(() -> {
+            killed.increment();
+            kill.run();
+        }, timeoutMillis);
+    }
+
+    /**
+     * Kills a script along with every process it started, which a plain destroy leaves running
+     * @param process the script's process
+     */
+    static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    /**
+     * Builds a response to a POST request made of a status line only
+     * @param statusCode status code of the response
+     * @return the response
+     */
+    private static Response status(int statusCode) {
+        Response response = new Response();
+        response.isPost = true;
+        response.setStatusCode(statusCode);
+        return response;
+    }
+
+    /**
+     * Gets the number of requests answered with 503 because the bulkhead was full
+     * @return rejection count
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the number of requests answered with 504 because their script did not answer in time
+     * @return timeout count
+     */
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Gets the number of scripts stopped for running too long
+     * @return kill count
+     */
+    public long getKilled() {
+        return killed.sum();
+    }
+
+    /**
+     * Gets the number of scripts running
+     * @return active count
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of invocations waiting for a thread
+     * @return queue length
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Summarizes the counters, e.g. for logging
+     * @return the counters as a single line
+     */
+    public String toString() {
+        return "CgiBulkhead[active=" + getActive() + ", queued=" + getQueued() + ", rejected=" + getRejected()
+                + ", timedOut=" + getTimedOut() + ", killed=" + getKilled() + "]";
+    }
+}
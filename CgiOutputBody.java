@@ -0,0 +1,197 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Response body streamed from the output of a CGI process as the script produces it,
+ * so the client gets the first bytes before the script finishes and a large output
+ * never has to be held in memory. The length is not known in advance, so the body is
+ * either sent with chunked transfer coding or ends when the connection closes.
+ * A script that runs past its deadline is killed along with any processes it started,
+ * and the body then fails rather than ending as if the output were complete
+ */
+public class CgiOutputBody implements ResponseBody {
+
+    /**
+     * Largest number of bytes read from the process at once
+     */
+    static final int CHUNK_BYTES = 8192;
+
+    /**
+     * Room left in front of the data for a chunk size line, e.g. "2000\r\n"
+     */
+    private static final int SIZE_LINE_BYTES = 8;
+
+    /**
+     * Chunk ending the body when chunked transfer coding is used
+     */
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Process producing the output
+     */
+    private final Process process;
+
+    /**
+     * Standard output of the process
+     */
+    private final InputStream output;
+
+    /**
+     * Whether chunked transfer coding is used
+     */
+    private final boolean chunked;
+
+    /**
+     * Buffer every read from the process goes into, with room for the chunk framing around it
+     */
+    private final byte[] buffer = new byte[SIZE_LINE_BYTES + CHUNK_BYTES + 2];
+
+    /**
+     * Bytes read from the process and framed, waiting to be written
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+
+    /**
+     * Number of bytes of output in the buffer from the last read
+     */
+    private int filled = 0;
+
+    /**
+     * Whether the process has closed its output
+     */
+    private boolean finished = false;
+
+    /**
+     * Set when the script was killed for running too long
+     */
+    private volatile boolean timedOut = false;
+
+    /**
+     * Deadline that kills the script, cancelled once it finishes
+     */
+    private final TimerWheel.Timeout deadline;
+
+    /**
+     * Constructor for the body
+     * @param process CGI process whose standard output is sent
+     * @param chunked true to use chunked transfer coding, false to end the body by closing the connection
+     * @param bulkhead bulkhead whose deadlines kill the script
+     * @param timeoutMillis milliseconds the script may run
+     */
+    public CgiOutputBody(Process process, boolean chunked, CgiBulkhead bulkhead, long timeoutMillis) {
+        this.process = process;
+        this.output = process.getInputStream();
+        this.chunked = chunked;
+        this.deadline = bulkhead.killAfter(this::kill, timeoutMillis);
+    }
+
+    /**
+     * Kills the script and every process it started, which ends its output
+     */
+    private void kill() {
+        timedOut = true;
+        CgiBulkhead.kill(process);
+    }
+
+    /**
+     * Waits for the first output of the process, so a script that prints nothing can be
+     * answered with 204. Called once, before the body is written
+     * @return true if the script printed something
+     * @throws InterruptedIOException if the script was killed for running too long
+     * @throws IOException if reading the output fails
+     */
+    public boolean hasOutput() throws IOException {
+        fill();
+        return !finished;
+    }
+
+    /**
+     * Gets the length of the body, which is not known until the process exits
+     * @return -1
+     */
+    public long length() {
+        return -1;
+    }
+
+    /**
+     * Reads the rest of the output into memory without any chunk framing, for a server
+     * that cannot wait on the process from the thread writing to the client.
+     * Called instead of writeTo, after hasOutput
+     * @return the output
+     * @throws InterruptedIOException if the script was killed for running too long
+     * @throws IOException if reading the output fails
+     */
+    public byte[] readFully() throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        while (!finished) {
+            all.write(buffer, SIZE_LINE_BYTES, filled);
+            fill();
+        }
+        return all.toByteArray();
+    }
+
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (true) {
+            if (pending.hasRemaining()) {
+                //the length is not known up front, so the bytes are counted as they go out
+                ServerMetrics.BYTES_SENT.add(channel.write(pending));
+                if (pending.hasRemaining()) {
+                    //the channel cannot take more right now
+                    return false;
+                }
+            }
+            if (finished) {
+                return true;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Reads the next output of the process into the buffer and frames it
+     * @throws IOException if reading the output fails
+     */
+    private void fill() throws IOException {
+        int count = output.read(buffer, SIZE_LINE_BYTES, CHUNK_BYTES);
+        filled = Math.max(count, 0);
+        if (count == -1) {
+            //a killed script's output is cut short, so the client must not take it as complete
+            if (timedOut) {
+                throw new InterruptedIOException("CGI script timed out");
+            }
+            deadline.cancel();
+            finished = true;
+            pending = ByteBuffer.wrap(chunked ? LAST_CHUNK : new byte[0]);
+            return;
+        }
+        if (!chunked) {
+            pending = ByteBuffer.wrap(buffer, SIZE_LINE_BYTES, count);
+            return;
+        }
+
+        //the chunk size in hex goes right in front of the data and a line break right after it
+        byte[] sizeLine = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        int start = SIZE_LINE_BYTES - sizeLine.length;
+        System.arraycopy(sizeLine, 0, buffer, start, sizeLine.length);
+        buffer[SIZE_LINE_BYTES + count] = '\r';
+        buffer[SIZE_LINE_BYTES + count + 1] = '\n';
+        pending = ByteBuffer.wrap(buffer, start, sizeLine.length + count + 2);
+    }
+
+    /**
+     * Closes the output and kills the script if it has not finished, e.g. because the client
+     * went away, so it does not keep its place in the bulkhead once its deadline is cancelled
+     */
+    public void close() throws IOException {
+        deadline.cancel();
+        output.close();
+        if (process.isAlive()) {
+            CgiBulkhead.kill(process);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps long-lived CGI script processes running and hands them requests over their
+ * standard input and output, so a POST costs a message round-trip instead of starting
+ * a process. Each script gets its own pool of up to a fixed number of workers.
+ * <p>
+ * Every message in either direction is a frame: the number of bytes as a decimal line,
+ * then that many bytes. A request is two frames, the per-request environment as
+ * NAME=VALUE lines and then the body; the worker answers with one frame holding its
+ * output. Workers are started with CGI_WORKER=1 and the environment that does not
+ * change between requests, and are expected to loop until their input is closed.
+ * A worker that does not answer in time is killed. Only scripts the caller knows to speak
+ * the protocol may be given to the pool, since an ordinary CGI script would take a
+ * framed request for its input and might act on it
+ */
+public class CgiWorkerPool {
+
+    /**
+     * One running script process
+     */
+    private static final class Worker {
+
+        final Process process;
+        final OutputStream toWorker;
+        final InputStream fromWorker;
+
+        /**
+         * Set when the worker was killed for not answering in time
+         */
+        volatile boolean timedOut = false;
+
+        Worker(Process process) {
+            this.process = process;
+            this.toWorker = new BufferedOutputStream(process.getOutputStream());
+            this.fromWorker = new BufferedInputStream(process.getInputStream());
+        }
+
+        /**
+         * Sends a request and waits for the output
+         * @param environment per-request environment as NAME=VALUE lines
+         * @param body body given to the script
+         * @return output of the script
+         * @throws InterruptedIOException if the worker was killed for not answering in time
+         * @throws IOException if the worker exits or breaks the framing
+         */
+        byte[] call(byte[] environment, byte[] body, TimerWheel timeouts, long timeoutMillis) throws IOException {
+            //killing the process and anything it started ends a read that would otherwise wait forever
+            TimerWheel.Timeout timeout = timeouts.schedule(() -> {
+                timedOut = true;
+                CgiBulkhead.kill(process);
+            }, timeoutMillis);
+            try {
+                writeFrame(environment);
+                writeFrame(body);
+                toWorker.flush();
+                return readFrame();
+            } catch (IOException e) {
+                if (timedOut) {
+                    throw new InterruptedIOException("CGI worker timed out");
+                }
+                throw e;
+            } finally {
+                timeout.cancel();
+            }
+        }
+
+        private void writeFrame(byte[] bytes) throws IOException {
+            toWorker.write((bytes.length + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            toWorker.write(bytes);
+        }
+
+        private byte[] readFrame() throws IOException {
+            int length = 0;
+            int digits = 0;
+            int b;
+            while ((b = fromWorker.read()) != '\n') {
+                if (b < '0' || b > '9' || ++digits > 9) {
+                    throw new IOException(b == -1 ? "CGI worker exited" : "Malformed frame from CGI worker");
+                }
+                length = length * 10 + (b - '0');
+            }
+            if (digits == 0) {
+                throw new IOException("Malformed frame from CGI worker");
+            }
+            byte[] bytes = fromWorker.readNBytes(length);
+            if (bytes.length < length) {
+                throw new IOException("CGI worker exited");
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Workers of one script
+     */
+    private static final class Pool {
+
+        /**
+         * Workers waiting for a request
+         */
+        final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+
+        /**
+         * Number of workers running, idle or busy
+         */
+        final AtomicInteger started = new AtomicInteger();
+    }
+
+    /**
+     * Largest number of workers per script
+     */
+    private final int workersPerScript;
+
+    /**
+     * Milliseconds a worker has to answer a request before it is killed
+     */
+    private final long timeoutMillis;
+
+    /**
+     * Deadlines of the requests workers are answering
+     */
+    private final TimerWheel timeouts = new TimerWheel(100, 512);
+
+    /**
+     * Environment every worker starts with
+     */
+    private final Map<String, String> environment;
+
+    /**
+     * Pools keyed by script path
+     */
+    private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for the pool, workers are started when their script is first requested
+     * @param workersPerScript largest number of workers per script
+     * @param timeoutMillis milliseconds a worker has to answer a request
+     * @param environment environment every worker starts with besides SCRIPT_NAME and SERVER_PORT, e.g. SERVER_NAME
+     */
+    public CgiWorkerPool(int workersPerScript, long timeoutMillis, Map<String, String> environment) {
+        this.workersPerScript = workersPerScript;
+        this.timeoutMillis = timeoutMillis;
+        this.environment = environment;
+        timeouts.start("CgiWorkerTimeouts");
+    }
+
+    /**
+     * Runs a request on a worker of the script, starting one if none is idle and the
+     * pool is not full, otherwise waiting for one to finish
+     * @param script path of the script relative to the server's directory, e.g. "cgi_bin/upcase.cgi"
+     * @param port port the server is listening on, given to workers as SERVER_PORT
+     * @param requestEnvironment per-request environment, e.g. CONTENT_LENGTH
+     * @param call call on the CGI bulkhead, which kills the worker if the request gives up on it
+     * @param body body given to the script
+     * @return output of the script
+     * @throws IOException if the worker cannot be started or fails
+     * @throws InterruptedException if interrupted while waiting for a worker
+     */
+    public byte[] call(String script, int port, Map<String, String> requestEnvironment, CgiBulkhead.Call call,
+            byte[] body) throws IOException, InterruptedException {
+        Pool pool = pools.computeIfAbsent(script, key -> new Pool());
+        Worker worker = acquire(pool, script, port);
+
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> variable : requestEnvironment.entrySet()) {
+            //a line break would start a new variable, so values are kept on one line
+            lines.append(variable.getKey()).append('=')
+                    .append(variable.getValue().replace('\n', ' ').replace('\r', ' ')).append('\n');
+        }
+
+        //a request that already gave up leaves the worker to the next one
+        try {
+            call.attach(worker.process);
+        } catch (InterruptedIOException e) {
+            pool.idle.add(worker);
+            throw e;
+        }
+
+        try {
+            byte[] output = worker.call(lines.toString().getBytes(StandardCharsets.UTF_8), body, timeouts, timeoutMillis);
+            //the worker outlives the request, so it is no longer the request's to kill
+            call.attach(null);
+            pool.idle.add(worker);
+            return output;
+        } catch (IOException | RuntimeException e) {
+            //a worker that broke the protocol is replaced by the next request that needs one
+            call.attach(null);
+            CgiBulkhead.kill(worker.process);
+            pool.started.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes an idle worker, or starts one if the pool has room
+     * @param pool pool of the script
+     * @param script path of the script
+     * @param port port the server is listening on
+     * @return a worker no other request is using
+     */
+    private Worker acquire(Pool pool, String script, int port) throws IOException, InterruptedException {
+        while (true) {
+            Worker worker = pool.idle.poll();
+            if (worker != null) {
+                if (worker.process.isAlive()) {
+                    return worker;
+                }
+                pool.started.decrementAndGet();
+                continue;
+            }
+
+            int running = pool.started.get();
+            if (running < workersPerScript) {
+                if (pool.started.compareAndSet(running, running + 1)) {
+                    try {
+                        return start(script, port);
+                    } catch (IOException | RuntimeException e) {
+                        pool.started.decrementAndGet();
+                        throw e;
+                    }
+                }
+                continue;
+            }
+
+            //waits a while, then checks again in case a failed worker left room to start one
+            worker = pool.idle.poll(100, TimeUnit.MILLISECONDS);
+            if (worker == null) {
+                continue;
+            }
+            if (worker.process.isAlive()) {
+                return worker;
+            }
+            pool.started.decrementAndGet();
+        }
+    }
+
+    /**
+     * Starts a worker process for the script
+     * @param script path of the script
+     * @param port port the server is listening on
+     * @return the new worker
+     * @throws IOException if the process cannot be started
+     */
+    private Worker start(String script, int port) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(script);
+        builder.environment().putAll(environment);
+        builder.environment().put("SCRIPT_NAME", "/" + script);
+        builder.environment().put("SERVER_PORT", Integer.toString(port));
+        builder.environment().put("CGI_WORKER", "1");
+        //nothing reads the workers' errors, so they go to the server's own
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return new Worker(builder.start());
+    }
+
+    /**
+     * Stops every worker, e.g. when the server shuts down
+     */
+    public void shutdown() {
+        for (Pool pool : pools.values()) {
+            Worker worker;
+            while ((worker = pool.idle.poll()) != null) {
+                worker.process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Map of cached entries evicted least recently used first, approximately, with the clock
+ * algorithm. A hit is a map lookup that sets the entry's reference mark, so it never takes
+ * a lock. The cache using it decides when to evict, e.g. by entry count or by bytes held,
+ * and guards the methods that add, drop and evict entries with a lock of its own
+ * @param <K> type of the keys
+ * @param <E> type of the entries
+ */
+final class ClockCache<K, E extends ClockCache.Entry<K>> {
+
+    /**
+     * Base of a cached entry
+     * @param <K> type of the key
+     */
+    static class Entry<K> {
+
+        /**
+         * Key the entry is cached under
+         */
+        final K key;
+
+        /**
+         * Set by hits and cleared as the clock hand passes, so entries in use are passed over for eviction
+         */
+        volatile boolean referenced = false;
+
+        Entry(K key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Cached entries by key
+     */
+    private final ConcurrentHashMap<K, E> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Cached entries in the order the clock hand passes them, may still hold entries already dropped
+     */
+    private final ConcurrentLinkedQueue<E> clock = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Entries dropped without the clock hand passing them, still taking room in the clock
+     */
+    private int dropped = 0;
+
+    /**
+     * Gets an entry for a request, marking it used. Needs no lock
+     * @param key key of the entry
+     * @return the entry, or null if nothing is cached under the key
+     */
+    E get(K key) {
+        E entry = entries.get(key);
+        //only written when it changes, so hits on a popular entry do not keep dirtying its cache line
+        if (entry != null && !entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets an entry without marking it used, e.g. to check whether it is still cached. Needs no lock
+     * @param key key of the entry
+     * @return the entry, or null if nothing is cached under the key
+     */
+    E peek(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Gets every cached entry. Needs no lock
+     * @return a live view of the entries
+     */
+    Collection<E> values() {
+        return entries.values();
+    }
+
+    /**
+     * Gets the number of cached entries. Needs no lock
+     * @return entry count
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Caches an entry, replacing any under the same key. Must be called while holding the owner's lock
+     * @param entry entry to cache
+     * @return the entry replaced, or null
+     */
+    E put(E entry) {
+        E previous = entries.put(entry.key, entry);
+        if (previous != null) {
+            dropped++;
+        }
+        add(entry);
+        return previous;
+    }
+
+    /**
+     * Caches an entry unless one is already cached under its key. Must be called while holding the owner's lock
+     * @param entry entry to cache
+     * @return the entry already cached, or null if this one was added
+     */
+    E putIfAbsent(E entry) {
+        E existing = entries.putIfAbsent(entry.key, entry);
+        if (existing == null) {
+            add(entry);
+        }
+        return existing;
+    }
+
+    /**
+     * Drops an entry if it is still cached, e.g. because its file changed. Must be called while holding the owner's lock
+     * @param entry entry to drop
+     * @return true if it was cached
+     */
+    boolean remove(E entry) {
+        if (entries.remove(entry.key, entry)) {
+            dropped++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evicts the next entry the clock hand comes to that was not used since it last came by,
+     * clearing the mark of those that were. Must be called while holding the owner's lock
+     * @return the evicted entry, or null if the cache is empty
+     */
+    E evict() {
+        while (true) {
+            E candidate = clock.poll();
+            if (candidate == null) {
+                return null;
+            }
+            if (entries.get(candidate.key) != candidate) {
+                dropped--;
+                continue;
+            }
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                clock.add(candidate);
+                continue;
+            }
+            entries.remove(candidate.key);
+            return candidate;
+        }
+    }
+
+    /**
+     * Puts a new entry behind the clock hand
+     * @param entry entry just cached
+     */
+    private void add(E entry) {
+        clock.add(entry);
+        //entries dropped while the cache stays under its limit would otherwise pile up in the clock
+        if (dropped > entries.size()) {
+            clock.removeIf(queued -> entries.get(queued.key) != queued);
+            dropped = 0;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how many requests are answered at once, with a limit that follows the
+ * latency requests are answered with. A short and a long moving average of the latency
+ * are kept; while the short one stays close to the long one there is room and the
+ * limit grows, and once requests start queueing the short one rises and the limit is
+ * cut in proportion. A request over the limit is turned away with a 503 instead
+ * of adding to a queue nobody is making progress on. A place is taken once a request
+ * has been parsed and given back once its response is written, so idle persistent
+ * connections hold none; how many connections are open is capped separately
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Weight of a new sample in the short average, about the last 10 requests
+     */
+    private static final double SHORT_WEIGHT = 0.1;
+
+    /**
+     * Weight of a new sample in the long average, about the last 500 requests
+     */
+    private static final double LONG_WEIGHT = 0.002;
+
+    /**
+     * How much slower than usual requests may get before the limit is cut
+     */
+    private static final double TOLERANCE = 1.5;
+
+    /**
+     * Share of each new limit worked into the current one, so one slow request moves it little
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    /**
+     * Whether the limit follows latency, or stays at the largest limit
+     */
+    private final boolean adaptive;
+
+    /**
+     * Current limit, only changed while holding the lock
+     */
+    private volatile double limit;
+
+    /**
+     * Number of requests being answered
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Moving averages of the latency in nanoseconds, 0 until the first sample
+     */
+    private double shortLatency = 0;
+    private double longLatency = 0;
+
+    /**
+     * Constructor for the limiter
+     * @param minLimit smallest the limit is cut to
+     * @param maxLimit largest the limit grows to
+     * @param adaptive true to follow latency, false to keep the limit at maxLimit
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit, boolean adaptive) {
+        this.minLimit = Math.min(minLimit, maxLimit);
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        //starts low and grows while latency allows, rather than starting high and collapsing first
+        this.limit = adaptive ? Math.max(this.minLimit, Math.min(maxLimit, 20)) : maxLimit;
+    }
+
+    /**
+     * Takes a place for a parsed request if there is room under the limit
+     * @return true if the request may be answered, in which case release must be called once its response is written
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the place of a request whose response has been written, or whose connection ended
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Records how long a request took and moves the limit accordingly
+     * @param latencyNanos time from the request arriving to its response being written
+     */
+    public synchronized void sample(long latencyNanos) {
+        if (!adaptive) {
+            return;
+        }
+        if (longLatency == 0) {
+            shortLatency = latencyNanos;
+            longLatency = latencyNanos;
+        }
+        shortLatency += (latencyNanos - shortLatency) * SHORT_WEIGHT;
+        longLatency += (latencyNanos - longLatency) * LONG_WEIGHT;
+
+        //once latency has come back down, the long average follows quickly so an old
+        //spike does not keep the limit higher than it should be
+        if (longLatency > 2 * shortLatency) {
+            longLatency *= 0.95;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        //the square root leaves room for a few requests to queue, which is how growth shows up
+        double target = limit * gradient + Math.sqrt(limit);
+        //a limit that is not being used gives no evidence that a higher one would be safe
+        if (target > limit && inFlight.get() < limit / 2) {
+            return;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    /**
+     * Gets the current limit
+     * @return largest number of requests answered at once right now
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of requests being answered
+     * @return in-flight count
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets the number of requests turned away with a 503
+     * @return rejection count
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Summarizes the counters, e.g. for logging
+     * @return the counters as a single line
+     */
+    public String toString() {
+        return "ConcurrencyLimiter[limit=" + getLimit() + "/" + maxLimit + ", inFlight=" + getInFlight()
+                + ", rejected=" + getRejected() + "]";
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bounded in-memory cache of static file contents, keyed by resource path.
+ * Files not used recently are evicted once the byte budget is exceeded, and an entry is
+ * only served while the file's last modified time and length still match.
+ * A gzip variant is built the first time a client accepts it and kept with the entry,
+ * so it is dropped together with the identity bytes when the file changes
+ */
+public class ContentCache {
+
+    /**
+     * Cached contents of one file
+     */
+    static final class Entry extends ClockCache.Entry<String> {
+
+        /**
+         * Contents of the file
+         */
+        final byte[] bytes;
+
+        /**
+         * Last modified time of the file when it was read
+         */
+        final long lastModified;
+
+        /**
+         * Contents compressed with gzip, bytes itself if compressing does not make them
+         * smaller, null until a client first asks for them. Only set while holding the lock
+         */
+        volatile byte[] gzipped;
+
+        Entry(String path, byte[] bytes, long lastModified) {
+            super(path);
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Gets the number of bytes the entry counts against the budget
+         * @return size of the contents and their gzip variant
+         */
+        long size() {
+            byte[] variant = gzipped;
+            return bytes.length + (variant == null || variant == bytes ? 0 : variant.length);
+        }
+    }
+
+    /**
+     * Largest total number of bytes held
+     */
+    private final long maxBytes;
+
+    /**
+     * Largest file that is cached, bigger files are streamed from disk
+     */
+    private final long maxEntryBytes;
+
+    /**
+     * Cached entries keyed by resource path
+     */
+    private final ClockCache<String, Entry> entries = new ClockCache<>();
+
+    /**
+     * Guards adding and dropping entries, which only misses and changes do, and totalBytes
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Number of bytes currently held, only written while holding the lock
+     */
+    private volatile long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder compressions = new LongAdder();
+
+    /**
+     * Constructor for the cache
+     * @param maxBytes largest total number of bytes held, 0 disables the cache
+     * @param maxEntryBytes largest file that is cached
+     */
+    public ContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    }
+
+    /**
+     * Checks whether a file is small enough to be cached
+     * @param length length of the file in bytes
+     * @return true if the file may be cached
+     */
+    public boolean accepts(long length) {
+        return length <= maxEntryBytes;
+    }
+
+    /**
+     * Gets the cached contents of a file if they are still current
+     * @param path resource path of the file
+     * @param lastModified current last modified time of the file
+     * @param length current length of the file
+     * @return contents of the file, or null if they are not cached or out of date
+     */
+    public byte[] get(String path, long lastModified, long length) {
+        Entry entry = current(path, lastModified, length);
+        if (entry != null) {
+            hits.increment();
+            return entry.bytes;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Looks up an entry without locking, marking it used if it is still current
+     * @param path resource path of the file
+     * @param lastModified current last modified time of the file
+     * @param length current length of the file
+     * @return the entry, or null if the file is not cached or out of date
+     */
+    private Entry current(String path, long lastModified, long length) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.lastModified == lastModified && entry.bytes.length == length) {
+            return entry;
+        }
+        //a changed file is dropped so the new contents can replace it
+        lock.lock();
+        try {
+            if (entries.remove(entry)) {
+                totalBytes -= entry.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Stores the contents of a file, evicting the least recently used files if over budget
+     * @param path resource path of the file
+     * @param lastModified last modified time of the file when it was read
+     * @param bytes contents of the file
+     */
+    public void put(String path, long lastModified, byte[] bytes) {
+        if (!accepts(bytes.length)) {
+            return;
+        }
+        Entry entry = new Entry(path, bytes, lastModified);
+        lock.lock();
+        try {
+            Entry previous = entries.put(entry);
+            if (previous != null) {
+                totalBytes -= previous.size();
+            }
+            totalBytes += bytes.length;
+            evictOverBudget();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the gzip variant of a cached file, compressing it the first time it is asked for
+     * @param path resource path of the file
+     * @param lastModified current last modified time of the file
+     * @param length current length of the file
+     * @return the compressed contents, the identity contents if compressing does not make
+     *         them smaller, or null if the file is not cached or out of date
+     */
+    public byte[] getGzipped(String path, long lastModified, long length) {
+        Entry entry = current(path, lastModified, length);
+        if (entry == null) {
+            return null;
+        }
+        byte[] cached = entry.gzipped;
+        if (cached != null) {
+            return cached;
+        }
+
+        //compressed outside the lock, while requests for the same file wait for this one
+        synchronized (entry) {
+            byte[] variant = entry.gzipped;
+            if (variant != null) {
+                return variant;
+            }
+            variant = gzip(entry.bytes);
+            compressions.increment();
+
+            lock.lock();
+            try {
+                entry.gzipped = variant;
+                //an entry evicted or replaced meanwhile no longer counts against the budget
+                if (entries.peek(path) == entry && variant != entry.bytes) {
+                    totalBytes += variant.length;
+                    evictOverBudget();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return variant;
+        }
+    }
+
+    /**
+     * Compresses bytes with gzip
+     * @param bytes bytes to compress
+     * @return the compressed bytes, or bytes itself if they would not get smaller
+     */
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            //writing to memory does not fail
+            return bytes;
+        }
+        return compressed.size() < bytes.length ? compressed.toByteArray() : bytes;
+    }
+
+    /**
+     * Evicts entries not used recently until the cache is within its byte budget,
+     * must be called while holding the lock
+     */
+    private void evictOverBudget() {
+        while (totalBytes > maxBytes) {
+            Entry evicted = entries.evict();
+            if (evicted == null) {
+                return;
+            }
+            totalBytes -= evicted.size();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Gets the number of requests served from the cache
+     * @return hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of requests that had to read the file
+     * @return miss count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of files evicted to stay within the byte budget
+     * @return eviction count
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of files compressed to build their gzip variant
+     * @return compression count
+     */
+    public long getCompressions() {
+        return compressions.sum();
+    }
+
+    /**
+     * Gets the number of bytes currently held
+     * @return bytes held
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Summarizes the counters, e.g. for logging
+     * @return the counters as a single line
+     */
+    public String toString() {
+        return "ContentCache[hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", compressions=" + getCompressions()
+                + ", bytes=" + getTotalBytes() + "/" + maxBytes + "]";
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Response body read from a file. Bytes go from the file to the socket with
+ * FileChannel.transferTo, which the operating system can do with sendfile so the
+ * file is never copied into the JVM heap
+ */
+public class FileBody implements ResponseBody {
+
+    /**
+     * Channel the file is read from
+     */
+    private final FileChannel file;
+
+    /**
+     * Position of the first byte to send
+     */
+    private final long start;
+
+    /**
+     * Position of the next byte to send
+     */
+    private long position;
+
+    /**
+     * Position just past the last byte to send
+     */
+    private final long end;
+
+    /**
+     * Constructor for a body holding the whole file
+     * @param path file to send
+     * @throws IOException if the file cannot be opened
+     */
+    public FileBody(Path path) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.start = 0;
+        this.position = 0;
+        this.end = file.size();
+    }
+
+    /**
+     * Constructor for a body holding part of a file, e.g. one range of a 206 response
+     * @param path file to send
+     * @param offset position of the first byte to send
+     * @param length number of bytes to send
+     * @throws IOException if the file cannot be opened
+     */
+    public FileBody(Path path, long offset, long length) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.READ), offset, length);
+    }
+
+    /**
+     * Constructor for a body holding part of a file that is already open, closing the body closes the file
+     * @param file channel to read from
+     * @param offset position of the first byte to send
+     * @param length number of bytes to send
+     */
+    FileBody(FileChannel file, long offset, long length) {
+        this.file = file;
+        this.start = offset;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public long length() {
+        return end - start;
+    }
+
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent <= 0) {
+                //the channel cannot take more right now, or the file shrank
+                if (position >= file.size()) {
+                    throw new IOException("File truncated while being sent");
+                }
+                return false;
+            }
+            position += sent;
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches what the filesystem says about requested files (type, length, last modified time
+ * and readability) so repeated requests for the same file make no stat calls. Only paths
+ * that exist are cached, at most a fixed number of them, and those not used recently are
+ * evicted first.
+ * The directory of every cached file is registered with a WatchService while it holds
+ * cached files. An entry is dropped as soon as its own path is created, modified or
+ * deleted. The entries of a directory that goes away are all dropped, and so is every
+ * entry if change events are lost
+ */
+public class FileMetadataCache {
+
+    /**
+     * What the filesystem said about a path when it was looked up
+     */
+    public static final class Metadata extends ClockCache.Entry<Path> {
+
+        /**
+         * Whether the path exists
+         */
+        public final boolean exists;
+
+        /**
+         * Whether the path is a directory
+         */
+        public final boolean directory;
+
+        /**
+         * Last modified time in milliseconds since the epoch
+         */
+        public final long lastModified;
+
+        /**
+         * Length of the file in bytes
+         */
+        public final long length;
+
+        /**
+         * Whether the server may read the file
+         */
+        public final boolean readable;
+
+        /**
+         * Content type of the resource, filled in by the first request that needs it
+         */
+        public volatile String contentType;
+
+        /**
+         * Last modified time formatted as an HTTP date, filled in by the first request that needs it
+         */
+        public volatile String lastModifiedDate;
+
+        /**
+         * Watched directory the path is in, set once the metadata is cached
+         */
+        Directory watchedBy;
+
+        Metadata(Path path, boolean exists, boolean directory, long lastModified, long length, boolean readable) {
+            super(path);
+            this.exists = exists;
+            this.directory = directory;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.readable = readable;
+        }
+    }
+
+    /**
+     * A watched directory and the number of cached entries, or lookups about to cache one, in it
+     */
+    private static final class Directory {
+
+        final Path path;
+        final WatchKey key;
+        int users = 0;
+
+        Directory(Path path, WatchKey key) {
+            this.path = path;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Largest number of entries cached
+     */
+    private final int maxEntries;
+
+    /**
+     * Cached metadata keyed by absolute, normalized path
+     */
+    private final ClockCache<Path, Metadata> entries = new ClockCache<>();
+
+    /**
+     * Directories being watched, mapped from the key the WatchService reports them under
+     */
+    private final ConcurrentHashMap<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * Directories registered with the WatchService, guarded by itself along with adding and
+     * dropping entries, which only misses and changes do
+     */
+    private final HashMap<Path, Directory> directories = new HashMap<>();
+
+    /**
+     * Counts change events, so a lookup racing with a change can tell its result may be stale
+     */
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Service reporting changes in watched directories, null when caching is off
+     */
+    private final WatchService watcher;
+
+    /**
+     * Constructor for the cache, which starts a daemon thread applying change events
+     * @param enabled false to always ask the filesystem
+     * @param maxEntries largest number of entries cached
+     */
+    public FileMetadataCache(boolean enabled, int maxEntries) {
+        this.maxEntries = maxEntries;
+        WatchService service = null;
+        if (enabled) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("File metadata cache disabled: " + e.getMessage());
+            }
+        }
+        this.watcher = service;
+
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "FileMetadataWatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Gets the metadata of a path, from the cache when nothing has changed since it was read
+     * @param path path of the requested resource
+     * @return metadata of the path
+     */
+    public Metadata lookup(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        Metadata cached = entries.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        //a path that does not exist is never cached, so unique missing paths cost nothing to keep
+        Metadata metadata = read(key);
+        if (!metadata.exists || watcher == null || key.getParent() == null) {
+            return metadata;
+        }
+        Directory directory = retain(key.getParent());
+        if (directory == null) {
+            return metadata;
+        }
+
+        //read again once the directory is watched, so no change after the read can be missed
+        long changesBefore = changes.get();
+        metadata = read(key);
+        synchronized (directories) {
+            metadata.watchedBy = directory;
+            if (!metadata.exists || entries.putIfAbsent(metadata) != null) {
+                release(directory);
+                return metadata;
+            }
+            evictOverLimit();
+        }
+        //drops the entry again if a change was reported while it was being read
+        if (changes.get() != changesBefore) {
+            remove(metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Asks the filesystem for the metadata of a path
+     * @param path path to look up
+     * @return metadata of the path
+     */
+    private Metadata read(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            //the path does not exist or cannot be inspected
+            return new Metadata(path, false, false, 0, 0, false);
+        }
+        return new Metadata(path, true, attributes.isDirectory(), attributes.lastModifiedTime().toMillis(),
+                attributes.size(), Files.isReadable(path));
+    }
+
+    /**
+     * Evicts entries not used recently until there are no more than the limit,
+     * must be called while holding the directories lock
+     */
+    private void evictOverLimit() {
+        while (entries.size() > maxEntries) {
+            Metadata evicted = entries.evict();
+            if (evicted == null) {
+                return;
+            }
+            release(evicted.watchedBy);
+        }
+    }
+
+    /**
+     * Drops an entry if it is still cached, and stops watching its directory once nothing in it is
+     * @param metadata the entry
+     */
+    private void remove(Metadata metadata) {
+        synchronized (directories) {
+            if (entries.remove(metadata)) {
+                release(metadata.watchedBy);
+            }
+        }
+    }
+
+    /**
+     * Counts a user of a directory, registering it with the WatchService if it is not already
+     * @param path directory to watch
+     * @return the watched directory, to be released once the user is done with it,
+     *         or null if changes in the directory cannot be reported
+     */
+    private Directory retain(Path path) {
+        synchronized (directories) {
+            Directory watched = directories.get(path);
+            if (watched == null) {
+                try {
+                    WatchKey watchKey = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watched = new Directory(path, watchKey);
+                    watchedDirectories.put(watchKey, path);
+                    directories.put(path, watched);
+                } catch (IOException e) {
+                    //a directory that does not exist or cannot be watched is not cached
+                    return null;
+                }
+            }
+            watched.users++;
+            return watched;
+        }
+    }
+
+    /**
+     * Drops a user of a directory, and stops watching it once it has none.
+     * Must be called while holding the directories lock
+     * @param watched watched directory
+     */
+    private void release(Directory watched) {
+        if (--watched.users > 0) {
+            return;
+        }
+        directories.remove(watched.path, watched);
+        watchedDirectories.remove(watched.key);
+        watched.key.cancel();
+    }
+
+    /**
+     * Applies change events to the cache until the process exits
+     */
+    private void watch() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watchedDirectories.get(watchKey);
+
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                changes.incrementAndGet();
+                //events were lost, so nothing cached can be trusted
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                    entries.values().forEach(this::remove);
+                    continue;
+                }
+                Metadata changed = entries.peek(directory.resolve((Path) event.context()));
+                if (changed != null) {
+                    remove(changed);
+                }
+            }
+
+            //the directory itself went away, so its entries can no longer be kept current and
+            //a lookup in a directory of the same name registers it again
+            if (!watchKey.reset() && directory != null) {
+                changes.incrementAndGet();
+                synchronized (directories) {
+                    Directory watched = directories.get(directory);
+                    if (watched != null && watched.key == watchKey) {
+                        directories.remove(directory);
+                    }
+                    for (Metadata metadata : entries.values()) {
+                        if (metadata.watchedBy != null && metadata.watchedBy.key == watchKey) {
+                            remove(metadata);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached entries
+     * @return entry count
+     */
+    public int size() {
+        return entries.size();
+    }
+}
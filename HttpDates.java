@@ -0,0 +1,76 @@
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formats and parses the dates used in HTTP headers, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+ * The formatters are immutable so one instance serves every thread, and the most recently
+ * formatted second is cached so repeated timestamps are not formatted again
+ */
+public class HttpDates {
+
+    /**
+     * Formatter for the full header date
+     */
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * Parser for the part of a date after the day of the week, which is not checked
+     */
+    private static final DateTimeFormatter PARSE = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss", Locale.US);
+
+    /**
+     * A formatted date together with the second it stands for
+     */
+    private static final class Formatted {
+        final long epochSecond;
+        final String text;
+
+        Formatted(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Most recently formatted date, replaced as a whole so readers never see a torn pair
+     */
+    private static volatile Formatted last = new Formatted(Long.MIN_VALUE, "");
+
+    /**
+     * Formats a time as an HTTP date
+     * @param epochMillis time in milliseconds since the epoch
+     * @return the date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String format(long epochMillis) {
+        long epochSecond = Math.floorDiv(epochMillis, 1000);
+        Formatted cached = last;
+        if (cached.epochSecond == epochSecond) {
+            return cached.text;
+        }
+        String text = FORMAT.format(java.time.Instant.ofEpochSecond(epochSecond));
+        last = new Formatted(epochSecond, text);
+        return text;
+    }
+
+    /**
+     * Parses an HTTP date such as an If-Modified-Since value. The " GMT" suffix is optional
+     * @param date date sent by the client
+     * @return seconds since the epoch, or -1 if the date is not valid
+     */
+    public static long parseEpochSeconds(String date) {
+        int comma = date.indexOf(",");
+        String text = date.substring(comma + 1).trim();
+        if (text.endsWith(" GMT")) {
+            text = text.substring(0, text.length() - 4);
+        }
+        try {
+            return LocalDateTime.parse(text, PARSE).toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
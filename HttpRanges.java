@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parses the byte ranges of a Range header, e.g. "bytes=0-499", "bytes=500-", "bytes=-500"
+ * or several of them separated by commas
+ */
+public class HttpRanges {
+
+    /**
+     * Most ranges served for one request, a header asking for more gets the whole file
+     */
+    static final int MAX_RANGES = 64;
+
+    /**
+     * Works out which bytes of a resource a Range header asks for. Overlapping and adjacent
+     * ranges are merged, so the result is in order of position
+     * @param header value of the Range header
+     * @param length length of the resource in bytes
+     * @return pairs of first and last byte positions, both inclusive; an empty array if no
+     *         range can be satisfied (416), or null if the header is not valid and has to be
+     *         ignored (200)
+     */
+    public static long[][] parse(String header, long length) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    //"-n" asks for the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix == 0 || length == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    //a range starting past the end cannot be satisfied, the others are cut to the end
+                    if (first >= length) {
+                        continue;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new long[] {first, last});
+        }
+
+        return merge(ranges);
+    }
+
+    /**
+     * Sorts ranges and joins the ones that overlap or touch
+     * @param ranges satisfiable ranges in the order they were asked for
+     * @return the merged ranges in order of position
+     */
+    private static long[][] merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges.toArray(new long[0][]);
+        }
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current = new long[] {current[0], Math.max(current[1], next[1])};
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged.toArray(new long[0][]);
+    }
+
+    /**
+     * Formats the Content-Range value of one range
+     * @param range first and last byte positions
+     * @param length length of the resource in bytes
+     * @return the value, e.g. "bytes 0-499/1234"
+     */
+    public static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * Formats the Content-Range value of a 416 response
+     * @param length length of the resource in bytes
+     * @return the value, "bytes *" followed by a slash and the length
+     */
+    public static String unsatisfied(long length) {
+        return "bytes */" + length;
+    }
+}
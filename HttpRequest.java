@@ -0,0 +1,67 @@
+import java.util.TreeMap;
+
+/**
+ * Holds the parts of an HTTP request message
+ */
+public class HttpRequest {
+
+    /**
+     * Command to carry out, e.g. "GET"
+     */
+    public String method = "";
+
+    /**
+     * Resource to access, e.g. "/index.html"
+     */
+    public String target = "";
+
+    /**
+     * HTTP version, e.g. "HTTP/1.1"
+     */
+    public String version = "";
+
+    /**
+     * Headers of the request, looked up without regard to case
+     */
+    public TreeMap<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Body of the request, null if it had none
+     */
+    public RequestBody body;
+
+    /**
+     * Status code to answer with when the request could not be parsed, 0 if it was well formed
+     */
+    public int errorCode = 0;
+
+    /**
+     * Gets a header
+     * @param name name of the header, in any case
+     * @return value of the header, or null if the request did not have it
+     */
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Gets a header
+     * @param name name of the header, in any case
+     * @param defaultValue value returned when the request did not have the header
+     * @return value of the header, or defaultValue
+     */
+    public String header(String name, String defaultValue) {
+        String value = headers.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Drops the request's reference to its body, which is freed once nothing else uses it
+     */
+    public void releaseBody() {
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+    }
+}
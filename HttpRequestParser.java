@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser turning the bytes of a connection into HttpRequest objects.
+ * It keeps its place between calls, so a request split across several reads is picked
+ * up where the last read left off, and bytes after a complete request stay in the
+ * buffer for the next one. Lines may end in "\r\n" or "\n"
+ */
+public class HttpRequestParser {
+
+    /**
+     * Largest request line plus headers accepted before answering 400
+     */
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /**
+     * Parts of the request message the parser can be in the middle of
+     */
+    private enum State { REQUEST_LINE, HEADERS, BODY }
+
+    private State state = State.REQUEST_LINE;
+
+    /**
+     * Bytes of the line being read
+     */
+    private byte[] line = new byte[256];
+
+    /**
+     * Number of bytes in line
+     */
+    private int lineLength = 0;
+
+    /**
+     * Bytes of request line and headers read for the current request
+     */
+    private int headerBytes = 0;
+
+    /**
+     * Request being parsed, null between requests
+     */
+    private HttpRequest request;
+
+    /**
+     * Consumes bytes from the buffer until a request is complete or the buffer is empty
+     * @param buffer bytes read from the client, ready to be read from
+     * @return the next complete request, or null if more bytes are needed
+     */
+    public HttpRequest parse(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (state == State.BODY) {
+                try {
+                    if (request.body.write(buffer)) {
+                        return finish();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Could not store request body: " + e);
+                    request.releaseBody();
+                    request.errorCode = 500;
+                    return finish();
+                }
+                continue;
+            }
+
+            byte b = buffer.get();
+            if (b == '\n') {
+                //the carriage return before the newline is not part of the line
+                int end = lineLength;
+                if (end > 0 && line[end - 1] == '\r') {
+                    end--;
+                }
+                lineLength = 0;
+                HttpRequest complete = endOfLine(end);
+                if (complete != null) {
+                    return complete;
+                }
+                continue;
+            }
+
+            if (++headerBytes > MAX_HEADER_BYTES) {
+                if (request == null) {
+                    request = new HttpRequest();
+                }
+                request.errorCode = 400;
+                return finish();
+            }
+            if (lineLength == line.length) {
+                byte[] bigger = new byte[line.length * 2];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+            line[lineLength++] = b;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether part of a request has been read
+     * @return true if the parser is in the middle of a request
+     */
+    public boolean hasPartialRequest() {
+        return state != State.REQUEST_LINE || lineLength > 0;
+    }
+
+    /**
+     * Checks whether the headers of the current request are complete and its body is being read
+     * @return true while reading a body
+     */
+    public boolean readingBody() {
+        return state == State.BODY;
+    }
+
+    /**
+     * Handles a complete line
+     * @param end length of the line without its line ending
+     * @return the request if the line completed it, otherwise null
+     */
+    private HttpRequest endOfLine(int end) {
+        if (state == State.REQUEST_LINE) {
+            //blank lines before a request are ignored
+            if (end == 0) {
+                headerBytes = 0;
+                return null;
+            }
+            request = new HttpRequest();
+            parseRequestLine(end);
+            state = State.HEADERS;
+            return null;
+        }
+
+        //a blank line ends the headers
+        if (end == 0) {
+            return startBody();
+        }
+        parseHeader(0, end);
+        return null;
+    }
+
+    /**
+     * Splits the request line into method, target and version
+     * @param end length of the line
+     */
+    private void parseRequestLine(int end) {
+        String[] parts = new String[3];
+        int count = 0;
+        int i = 0;
+        while (count < 3) {
+            while (i < end && line[i] == ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int start = i;
+            while (i < end && line[i] != ' ') {
+                i++;
+            }
+            parts[count++] = new String(line, start, i - start, StandardCharsets.ISO_8859_1);
+        }
+
+        //makes sure there are at least 3 parts to look at
+        if (count < 3) {
+            request.errorCode = 400;
+            return;
+        }
+        request.method = parts[0];
+        request.target = parts[1];
+        request.version = parts[2];
+
+        //a header written on the same line as the request is still accepted
+        while (i < end && line[i] == ' ') {
+            i++;
+        }
+        if (i < end) {
+            parseHeader(i, end);
+        }
+    }
+
+    /**
+     * Adds a "Name: value" header line to the request
+     * @param start index of the first byte of the header
+     * @param end index just past the last byte of the header
+     */
+    private void parseHeader(int start, int end) {
+        int colon = -1;
+        for (int i = start; i < end; i++) {
+            if (line[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        //every header needs a name followed by a colon
+        if (colon <= start) {
+            request.errorCode = 400;
+            return;
+        }
+
+        int nameEnd = colon;
+        while (nameEnd > start && line[nameEnd - 1] == ' ') {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (line[valueStart] == ' ' || line[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        String name = new String(line, start, nameEnd - start, StandardCharsets.ISO_8859_1);
+        String value = new String(line, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        //lengths that disagree leave the end of the body for the client and the server to guess differently
+        String previous = request.headers.put(name, value);
+        if (previous != null && !previous.equals(value) && name.equalsIgnoreCase("Content-Length")) {
+            request.errorCode = 400;
+        }
+    }
+
+    /**
+     * Prepares to read the body declared by Content-Length, or finishes a request without one.
+     * A body whose end cannot be found, because its length is malformed or it is sent with a
+     * Transfer-Encoding, is answered with 400, which closes the connection rather than parsing
+     * the body as the next request
+     * @return the request if it has no body, otherwise null
+     */
+    private HttpRequest startBody() {
+        if (request.errorCode != 0) {
+            return finish();
+        }
+        if (request.header("Transfer-Encoding") != null) {
+            request.errorCode = 400;
+            return finish();
+        }
+        String contentLength = request.header("Content-Length");
+        if (contentLength == null) {
+            return finish();
+        }
+
+        long length = parseLength(contentLength);
+        if (length < 0) {
+            request.errorCode = 400;
+            return finish();
+        }
+        if (length > ServerConfig.maxBodyBytes) {
+            request.errorCode = 413;
+            return finish();
+        }
+        if (length == 0) {
+            return finish();
+        }
+
+        //the body is read into a pooled buffer, or spilled to a file when it is large
+        try {
+            request.body = RequestBody.allocate(length);
+        } catch (IOException e) {
+            System.out.println("Could not store request body: " + e);
+            request.errorCode = 500;
+            return finish();
+        }
+        state = State.BODY;
+        return null;
+    }
+
+    /**
+     * Reads a Content-Length, which has to be nothing but decimal digits
+     * @param value value of the header
+     * @return the length, or -1 if it is malformed or too large to be a length
+     */
+    private static long parseLength(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Hands over the current request and gets ready for the next one
+     * @return the completed request
+     */
+    private HttpRequest finish() {
+        HttpRequest complete = request;
+        request = null;
+        state = State.REQUEST_LINE;
+        lineLength = 0;
+        headerBytes = 0;
+        return complete;
+    }
+
+    /**
+     * Drops a request the connection is closed in the middle of, freeing any part of its body read so far
+     */
+    public void discard() {
+        if (request != null) {
+            request.releaseBody();
+        }
+        finish();
+    }
+}
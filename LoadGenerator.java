@@ -0,0 +1,543 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests to a server over many persistent connections at once and reports
+ * throughput, latency percentiles and how the responses broke down by status.
+ * <p>
+ * In closed-loop mode every connection sends its next request as soon as the previous
+ * response is in. In open-loop mode the connections together send at a fixed rate and
+ * each request has a time it was meant to go out. Its latency is measured from that time,
+ * not from when it was actually sent, so a server stall counts against every request that
+ * should have been sent during it. That corrects for coordinated omission, where a load
+ * generator that waits on a slow response quietly stops sending and the tail looks better
+ * than it is. Service time, from the actual send, is reported alongside
+ */
+public class LoadGenerator {
+
+    /**
+     * Kinds of request sent, in turn
+     */
+    static final String[] TEMPLATES = {"get", "head", "conditional", "post"};
+
+    private final String host;
+    private final int port;
+
+    private int connections = 16;
+    private double rate = 0;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private int timeoutMillis = 10000;
+    private String path = "/index.html";
+    private String cgiPath = "/cgi_bin/upcase.cgi";
+    private String[] mix = {"get"};
+
+    /**
+     * Bytes of each request in the mix, built once before the load starts
+     */
+    private byte[][] requests;
+
+    /**
+     * Constructor for the generator
+     * @param host host the server runs on
+     * @param port port the server listens on
+     */
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Reads the "--name=value" options that follow the host and port
+     * @param args command line arguments
+     * @param first index of the first option
+     * @throws IllegalArgumentException if an option is unknown or its value is not valid
+     */
+    public void parse(String[] args, int first) {
+        for (int i = first; i < args.length; i++) {
+            String arg = args[i];
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "connections":
+                    connections = ServerConfig.parsePositive(name, value);
+                    break;
+                case "rate":
+                    try {
+                        rate = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        rate = -1;
+                    }
+                    if (rate < 0) {
+                        throw new IllegalArgumentException("--rate must be a non-negative number: " + value);
+                    }
+                    break;
+                case "duration":
+                    durationSeconds = ServerConfig.parsePositive(name, value);
+                    break;
+                case "warmup":
+                    warmupSeconds = (int) ServerConfig.parseNonNegative(name, value);
+                    break;
+                case "timeout":
+                    timeoutMillis = ServerConfig.parsePositive(name, value);
+                    break;
+                case "path":
+                    path = value;
+                    break;
+                case "cgi-path":
+                    cgiPath = value;
+                    break;
+                case "mix":
+                    mix = value.split(",");
+                    for (String template : mix) {
+                        if (!List.of(TEMPLATES).contains(template)) {
+                            throw new IllegalArgumentException("Unknown request template: " + template);
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+
+    /**
+     * Builds the bytes of one request
+     * @param template kind of request, one of TEMPLATES
+     * @return the request
+     */
+    byte[] request(String template) {
+        String headers = "Host: " + host + ":" + port + "\r\nUser-Agent: WebServerClient\r\n";
+        String request;
+        switch (template) {
+            case "head":
+                request = "HEAD " + path + " HTTP/1.1\r\n" + headers + "\r\n";
+                break;
+            case "conditional":
+                request = "GET " + path + " HTTP/1.1\r\n" + headers
+                        + "If-Modified-Since: Sat, 01 Jan 2050 00:00:00 GMT\r\n\r\n";
+                break;
+            case "post":
+                String body = "name=load!+test&value=42";
+                request = "POST " + cgiPath + " HTTP/1.1\r\n" + headers
+                        + "Content-Type: application/x-www-form-urlencoded\r\n"
+                        + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+                break;
+            default:
+                request = "GET " + path + " HTTP/1.1\r\n" + headers + "\r\n";
+        }
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Runs the load and prints the report
+     * @throws InterruptedException if interrupted while waiting for the connections
+     */
+    public void run() throws InterruptedException {
+        requests = new byte[mix.length][];
+        for (int i = 0; i < mix.length; i++) {
+            requests[i] = request(mix[i]);
+        }
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+
+        System.out.printf("%s load on %s:%d: %d connections, %s, %ds warm-up, %ds measured, mix %s%n",
+                rate > 0 ? "Open-loop" : "Closed-loop", host, port, connections,
+                rate > 0 ? rate + " requests/s" : "as fast as responses come back",
+                warmupSeconds, durationSeconds, String.join(",", mix));
+
+        Worker[] workers = new Worker[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(i, start, measureFrom, end);
+            workers[i].start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+
+        //each connection kept its own counts, so nothing was shared while measuring
+        Histogram latency = new Histogram();
+        Histogram service = new Histogram();
+        Map<String, Long> outcomes = new TreeMap<>();
+        for (Worker worker : workers) {
+            latency.add(worker.latency);
+            service.add(worker.service);
+            worker.outcomes.forEach((outcome, count) -> outcomes.merge(outcome, count, Long::sum));
+        }
+        report(latency, service, outcomes);
+    }
+
+    /**
+     * Prints throughput, percentiles and the breakdown of responses
+     */
+    private void report(Histogram latency, Histogram service, Map<String, Long> outcomes) {
+        //only requests that got a response count towards throughput
+        long answered = outcomes.entrySet().stream()
+                .filter(outcome -> Character.isDigit(outcome.getKey().charAt(0)))
+                .mapToLong(Map.Entry::getValue).sum();
+        System.out.printf("Responses: %d in %ds, %.1f responses/s%n", answered, durationSeconds, (double) answered / durationSeconds);
+        for (Map.Entry<String, Long> outcome : outcomes.entrySet()) {
+            System.out.printf("  %-12s %d%n", outcome.getKey(), outcome.getValue());
+        }
+        if (rate > 0) {
+            System.out.println("Latency from intended send time (corrected for coordinated omission):");
+            latency.print();
+        }
+        System.out.println("Service time from actual send time:");
+        service.print();
+    }
+
+    /**
+     * One connection sending requests one after another, reconnecting when the server closes it
+     */
+    private final class Worker extends Thread {
+
+        final Histogram latency = new Histogram();
+        final Histogram service = new Histogram();
+
+        /**
+         * Counts by outcome, e.g. "200", "503" or "error"
+         */
+        final Map<String, Long> outcomes = new TreeMap<>();
+
+        private final int index;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        Worker(int index, long start, long measureFrom, long end) {
+            super("LoadWorker-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        public void run() {
+            //spreads the connections' schedules evenly over one interval
+            long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+            long intended = start + interval * index / connections;
+            int next = index;
+
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (rate > 0) {
+                    if (intended >= end) {
+                        break;
+                    }
+                    //only waits when ahead of schedule, a late request goes out straight away
+                    if (intended > now) {
+                        LockSupport.parkNanos(intended - now);
+                    }
+                } else {
+                    intended = now;
+                }
+
+                int template = next++ % mix.length;
+                long sent = System.nanoTime();
+                String outcome = send(requests[template], mix[template].equals("head"));
+                long done = System.nanoTime();
+
+                if (intended >= measureFrom) {
+                    latency.record(done - intended);
+                    service.record(done - sent);
+                    outcomes.merge(outcome, 1L, Long::sum);
+                }
+                intended += interval;
+            }
+            disconnect();
+
+            //requests that fell due while the server was too slow to let them be sent still
+            //count, with at least the time they had been waiting when the run ended
+            if (rate > 0) {
+                for (; intended < end; intended += interval) {
+                    if (intended >= measureFrom) {
+                        latency.record(end - intended);
+                        outcomes.merge("unsent", 1L, Long::sum);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends one request and reads the whole response
+         * @param request bytes of the request
+         * @param head true if the request is a HEAD
+         * @return the status code, or "timeout" or "error" if no response came back
+         */
+        private String send(byte[] request, boolean head) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                out.write(request);
+                out.flush();
+                Reply response = readResponse(head);
+                if (!response.keepAlive) {
+                    disconnect();
+                }
+                return Integer.toString(response.status);
+            } catch (SocketTimeoutException e) {
+                disconnect();
+                return "timeout";
+            } catch (IOException e) {
+                disconnect();
+                return "error";
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream(), 16384);
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    //the connection is being dropped anyway
+                }
+                socket = null;
+            }
+        }
+
+        /**
+         * Reads a response up to the end of its body
+         * @param head true if the request was a HEAD, whose response has no body
+         * @return status code and whether the connection stays open
+         * @throws IOException if the response is cut short or malformed
+         */
+        private Reply readResponse(boolean head) throws IOException {
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            Reply response = new Reply();
+            try {
+                response.status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+
+            long length = -1;
+            boolean chunked = false;
+            String connection = null;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    connection = value;
+                }
+            }
+
+            boolean http11 = parts[0].equals("HTTP/1.1");
+            response.keepAlive = connection == null ? http11 : connection.equalsIgnoreCase("keep-alive");
+            boolean noBody = head || response.status == 204 || response.status == 304 || response.status / 100 == 1;
+            if (noBody) {
+                return response;
+            }
+            if (chunked) {
+                readChunks();
+            } else if (length >= 0) {
+                skip(length);
+            } else {
+                //the body runs until the server closes the connection
+                response.keepAlive = false;
+                while (in.read() != -1) {
+                    //discards the body
+                }
+            }
+            return response;
+        }
+
+        private void readChunks() throws IOException {
+            while (true) {
+                String sizeLine = readLine();
+                int semicolon = sizeLine.indexOf(';');
+                long size = Long.parseLong((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    //skips any trailer fields up to the blank line
+                    while (!readLine().isEmpty()) {
+                        //discards the trailer
+                    }
+                    return;
+                }
+                skip(size + 2);
+            }
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new EOFException("Response body cut short");
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException("Connection closed mid-response");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Status and persistence of a response that has been read
+     */
+    private static final class Reply {
+        int status;
+        boolean keepAlive;
+    }
+
+    /**
+     * Latency histogram in microseconds with buckets at most about 1.5% wide, so percentiles
+     * come out close to the recorded values without keeping every sample. Not thread-safe,
+     * each connection keeps its own and they are added up at the end
+     */
+    static final class Histogram {
+
+        /**
+         * Values below this get a bucket each, every power of two above it is split into half as many buckets
+         */
+        private static final int SUB_BUCKETS = 128;
+
+        /**
+         * Enough buckets for any positive long
+         */
+        private final long[] counts = new long[SUB_BUCKETS + 57 * (SUB_BUCKETS / 2)];
+        private long total = 0;
+        private long max = 0;
+
+        /**
+         * Records one latency
+         * @param nanos latency in nanoseconds
+         */
+        void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            counts[index(micros)]++;
+            total++;
+            max = Math.max(max, micros);
+        }
+
+        /**
+         * Finds the bucket of a value
+         * @param micros value in microseconds
+         * @return index into counts
+         */
+        private static int index(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int range = 63 - Long.numberOfLeadingZeros(micros) - 6;
+            int sub = (int) (micros >>> range);
+            return range * (SUB_BUCKETS / 2) + sub;
+        }
+
+        /**
+         * Gets the highest value that falls in a bucket
+         * @param index index into counts
+         * @return value in microseconds
+         */
+        private static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int range = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+            int sub = index - range * (SUB_BUCKETS / 2);
+            return ((long) (sub + 1) << range) - 1;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * Gets the value a share of the recorded latencies are at or below
+         * @param percentile e.g. 99.9
+         * @return latency in microseconds
+         */
+        long percentile(double percentile) {
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        void print() {
+            if (total == 0) {
+                System.out.println("  no responses");
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            for (double percentile : new double[] {50, 90, 99, 99.9}) {
+                lines.add(String.format("  p%-5s %10.3f ms", trim(percentile), percentile(percentile) / 1000.0));
+            }
+            lines.add(String.format("  max    %10.3f ms", max / 1000.0));
+            lines.forEach(System.out::println);
+        }
+
+        private static String trim(double percentile) {
+            return percentile == Math.floor(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Response body sent from a view of a memory-mapped file. The socket reads straight from
+ * the page cache, so the file is never copied into the JVM heap
+ */
+public class MappedBody implements ResponseBody {
+
+    /**
+     * View of the mapping owned by this body, its position is the next byte to send
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Number of bytes in the body
+     */
+    private final long length;
+
+    /**
+     * Constructor for the body
+     * @param buffer view of the mapped file that no one else reads from
+     */
+    public MappedBody(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.length = buffer.remaining();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            int sent;
+            try {
+                sent = channel.write(buffer);
+            } catch (InternalError e) {
+                //reading a mapping fails this way when the file was truncated under it
+                throw new IOException("File truncated while being sent", e);
+            }
+            if (sent == 0) {
+                //the channel cannot take more right now
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        //the mapping is shared and released by the garbage collector
+    }
+}
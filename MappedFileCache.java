@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded set of memory-mapped files, for files too large for the ContentCache but small
+ * enough to map. The operating system's page cache holds the contents, so they take no
+ * heap, and every request for a file sends a view of the same mapping. Files not used
+ * recently are evicted once the mapped byte budget is exceeded, and an entry is only
+ * served while the file's last modified time and length still match. An evicted mapping
+ * is released by the garbage collector once no response is still sending from it
+ */
+public class MappedFileCache {
+
+    /**
+     * Mapping of one file
+     */
+    static final class Entry extends ClockCache.Entry<String> {
+
+        /**
+         * Contents of the file, never read from directly so its position stays at 0
+         */
+        final MappedByteBuffer buffer;
+
+        /**
+         * Last modified time of the file when it was mapped
+         */
+        final long lastModified;
+
+        Entry(String path, MappedByteBuffer buffer, long lastModified) {
+            super(path);
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Largest total number of bytes mapped
+     */
+    private final long maxBytes;
+
+    /**
+     * Largest file that is mapped, bigger files are streamed with FileChannel.transferTo
+     */
+    private final long maxEntryBytes;
+
+    /**
+     * Mapped entries keyed by resource path
+     */
+    private final ClockCache<String, Entry> entries = new ClockCache<>();
+
+    /**
+     * Guards adding and dropping entries, which only misses and changes do, and totalBytes
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Number of bytes currently mapped, only written while holding the lock
+     */
+    private volatile long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor for the cache
+     * @param maxBytes largest total number of bytes mapped, 0 disables the cache
+     * @param maxEntryBytes largest file that is mapped
+     */
+    public MappedFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        //a single mapping cannot hold more than Integer.MAX_VALUE bytes
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, maxBytes), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Checks whether a file is small enough to be mapped
+     * @param length length of the file in bytes
+     * @return true if the file may be mapped
+     */
+    public boolean accepts(long length) {
+        return length <= maxEntryBytes;
+    }
+
+    /**
+     * Gets a view of the mapped contents of a file if they are still current
+     * @param path resource path of the file
+     * @param lastModified current last modified time of the file
+     * @param length current length of the file
+     * @return a view of the contents the caller may read from, or null if the file
+     *         is not mapped or out of date
+     */
+    public ByteBuffer get(String path, long lastModified, long length) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.lastModified == lastModified && entry.buffer.capacity() == length) {
+            hits.increment();
+            return entry.buffer.duplicate();
+        }
+        //a changed file is dropped so the new contents can replace it
+        if (entry != null) {
+            lock.lock();
+            try {
+                if (entries.remove(entry)) {
+                    totalBytes -= entry.buffer.capacity();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Maps a file and stores the mapping, evicting the least recently used files if over budget
+     * @param path resource path of the file
+     * @param file file to map
+     * @param lastModified last modified time of the file
+     * @return a view of the contents the caller may read from
+     * @throws IOException if the file cannot be mapped
+     */
+    public ByteBuffer map(String path, Path file, long lastModified) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            //the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), maxEntryBytes));
+        }
+
+        Entry entry = new Entry(path, buffer, lastModified);
+        lock.lock();
+        try {
+            Entry previous = entries.put(entry);
+            if (previous != null) {
+                totalBytes -= previous.buffer.capacity();
+            }
+            totalBytes += buffer.capacity();
+            evictOverBudget();
+        } finally {
+            lock.unlock();
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Evicts mappings not used recently until the mapped bytes are within the budget,
+     * must be called while holding the lock
+     */
+    private void evictOverBudget() {
+        while (totalBytes > maxBytes) {
+            Entry evicted = entries.evict();
+            if (evicted == null) {
+                return;
+            }
+            totalBytes -= evicted.buffer.capacity();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Gets the number of requests served from an existing mapping
+     * @return hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of requests that had to map the file
+     * @return miss count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of mappings evicted to stay within the byte budget
+     * @return eviction count
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of bytes currently mapped
+     * @return bytes mapped
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Summarizes the counters, e.g. for logging
+     * @return the counters as a single line
+     */
+    public String toString() {
+        return "MappedFileCache[hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", bytes=" + getTotalBytes() + "/" + maxBytes + "]";
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Content types of the file extensions the server knows, held in an open addressing hash
+ * table built once at startup. A lookup hashes the extension where it sits in the path,
+ * so resolving a type allocates nothing and is safe from any thread
+ */
+public final class MimeTypes {
+
+    /**
+     * Type of files whose extension is missing or unknown
+     */
+    public static final String DEFAULT = "application/octet-stream";
+
+    /**
+     * Types by extension, the extension is the subtype for every type the server supports
+     */
+    private static final String[] TYPES = {
+            "text/html", "text/plain",
+            "image/gif", "image/jpeg", "image/png",
+            "application/octet-stream", "application/pdf", "application/x-gzip", "application/zip"};
+
+    /**
+     * Slots of the table, a power of two at least twice the number of types so probes stay short
+     */
+    private static final int CAPACITY = 32;
+
+    /**
+     * Extensions in lower case, null where a slot is free
+     */
+    private static final String[] EXTENSIONS = new String[CAPACITY];
+
+    /**
+     * Content type of the extension in the same slot
+     */
+    private static final String[] VALUES = new String[CAPACITY];
+
+    static {
+        for (String type : TYPES) {
+            String extension = type.substring(type.indexOf('/') + 1);
+            int slot = hash(extension, 0, extension.length()) & (CAPACITY - 1);
+            while (EXTENSIONS[slot] != null) {
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            EXTENSIONS[slot] = extension;
+            VALUES[slot] = type;
+        }
+    }
+
+    private MimeTypes() {
+    }
+
+    /**
+     * Works out the content type of a resource from the extension of its last path segment,
+     * so "/docs.v2/readme" has no extension and "/a.tar.gz" is looked up as "gz"
+     * @param resource resource path from the request
+     * @return type and subtype separated by "/", DEFAULT if the extension is missing or unknown
+     */
+    public static String lookup(String resource) {
+        int end = resource.length();
+        int period = -1;
+        for (int i = end - 1; i >= 0; i--) {
+            char c = resource.charAt(i);
+            if (c == '.') {
+                period = i;
+                break;
+            }
+            if (c == '/') {
+                break;
+            }
+        }
+        if (period == -1) {
+            return DEFAULT;
+        }
+
+        int start = period + 1;
+        int length = end - start;
+        int slot = hash(resource, start, end) & (CAPACITY - 1);
+        for (String extension = EXTENSIONS[slot]; extension != null; extension = EXTENSIONS[slot]) {
+            if (extension.length() == length && resource.regionMatches(true, start, extension, 0, length)) {
+                return VALUES[slot];
+            }
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Hashes part of a string ignoring the case of ASCII letters
+     * @param s string holding the characters
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the hash, with its high bits folded into the low ones the table indexes by
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+}
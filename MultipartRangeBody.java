@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Response body of a 206 response to a request for several ranges, sent as
+ * multipart/byteranges. Each part is a short header followed by a slice of the file
+ * sent with FileChannel.transferTo, so none of the file is loaded onto the heap
+ */
+public class MultipartRangeBody implements ResponseBody {
+
+    /**
+     * Separator between the parts, which cannot be confused with the short part headers
+     */
+    static final String BOUNDARY = "PartialHTTP1ServerByteRanges";
+
+    /**
+     * Content-Type of the whole response
+     */
+    static final String CONTENT_TYPE = "multipart/byteranges; boundary=" + BOUNDARY;
+
+    /**
+     * File the parts are read from
+     */
+    private final FileChannel file;
+
+    /**
+     * Header of each part, followed by the closing delimiter
+     */
+    private final ByteBuffer[] delimiters;
+
+    /**
+     * Slice of the file sent after each part header
+     */
+    private final FileBody[] slices;
+
+    /**
+     * Number of bytes in the body
+     */
+    private final long length;
+
+    /**
+     * Index of what is being sent, even for a delimiter and odd for a slice
+     */
+    private int next = 0;
+
+    /**
+     * Constructor for the body
+     * @param path file to send parts of
+     * @param ranges first and last byte positions of each part, as given by HttpRanges.parse
+     * @param fileLength length of the file in bytes
+     * @param contentType Content-Type of the file
+     * @throws IOException if the file cannot be opened
+     */
+    public MultipartRangeBody(Path path, long[][] ranges, long fileLength, String contentType) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.delimiters = new ByteBuffer[ranges.length + 1];
+        this.slices = new FileBody[ranges.length];
+
+        long total = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            String header = "\r\n--" + BOUNDARY + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + HttpRanges.contentRange(ranges[i], fileLength) + "\r\n\r\n";
+            delimiters[i] = ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1));
+            slices[i] = new FileBody(file, ranges[i][0], ranges[i][1] - ranges[i][0] + 1);
+            total += delimiters[i].remaining() + slices[i].length();
+        }
+        delimiters[ranges.length] = ByteBuffer.wrap(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        total += delimiters[ranges.length].remaining();
+        this.length = total;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (next < delimiters.length + slices.length) {
+            if (next % 2 == 0) {
+                ByteBuffer delimiter = delimiters[next / 2];
+                channel.write(delimiter);
+                if (delimiter.hasRemaining()) {
+                    return false;
+                }
+            } else if (!slices[next / 2].writeTo(channel)) {
+                return false;
+            }
+            next++;
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,824 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to the thread-per-connection model in PartialHTTP1Server.
+ * The main thread accepts connections and deals them out to a few event loop threads,
+ * each of which owns a Selector and serves every connection registered with it.
+ * POST requests wait on a CGI script, so they are answered on other threads and the
+ * response is handed back to the connection's loop
+ */
+public class NioServer {
+
+    /**
+     * Threads POST requests are answered on, so an event loop never waits on a CGI script.
+     * There are as many as the CGI bulkhead has room for, running and waiting, since a POST
+     * past that would only be turned away by the bulkhead
+     */
+    private static final ThreadPoolExecutor OFFLOAD = offload(ServerConfig.cgiThreads + ServerConfig.cgiQueue);
+
+    /**
+     * Connections open on every loop, capped at --max-connections
+     */
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    /**
+     * Port the server listens on
+     */
+    private final int port;
+
+    /**
+     * Event loops that connections are dealt out to
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * Number of threads accepting connections
+     */
+    private final int acceptors;
+
+    /**
+     * Builds the pool POST requests are answered on
+     * @param threads largest number of threads
+     * @return the pool, which rejects a task when every thread is busy
+     */
+    private static ThreadPoolExecutor offload(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), task -> {
+                    Thread thread = new Thread(task, "NioCgiOffload");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Constructor for the server
+     * @param port port to listen on
+     * @param loopCount number of event loop threads to start
+     * @param acceptors number of threads accepting connections
+     */
+    public NioServer(int port, int loopCount, int acceptors) {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Starts the event loops and accepts connections until the process exits
+     * @throws IOException if the listening channel cannot be opened
+     */
+    public void run() throws IOException {
+        ServerSocketChannel[] listeners = PartialHTTP1Server.listen(port, acceptors);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        //every acceptor but one runs on a thread of its own, the last one on this thread
+        for (int i = 0; i < acceptors - 1; i++) {
+            int index = i;
+            new Thread(() -> {
+                try {
+                    accept(listeners[index % listeners.length], index);
+                } catch (IOException e) {
+                    System.out.println("Acceptor stopped: " + e.getMessage());
+                }
+            }, "NioAcceptor-" + i).start();
+        }
+        accept(listeners[(acceptors - 1) % listeners.length], acceptors - 1);
+    }
+
+    /**
+     * Accepts connections and deals them out to this acceptor's own share of the event
+     * loops, so acceptors do not hand work to the same loops
+     * @param serverChannel listening channel
+     * @param index index of the acceptor
+     * @throws IOException if accepting fails
+     */
+    private void accept(ServerSocketChannel serverChannel, int index) throws IOException {
+        //the loops whose index matches this acceptor's, or all of them if there are fewer loops than acceptors
+        int first = loops.length >= acceptors ? index : 0;
+        int step = loops.length >= acceptors ? acceptors : 1;
+
+        //hands each new connection to the next event loop in turn
+        int next = first;
+        while (true) {
+            SocketChannel client = serverChannel.accept();
+            //turns the client away straight away when the server has as many connections as it may,
+            //the requests of the ones let in are limited one by one as they arrive
+            if (OPEN.incrementAndGet() > ServerConfig.maxConnections) {
+                OPEN.decrementAndGet();
+                PartialHTTP1Server.shed(client);
+                continue;
+            }
+            ServerMetrics.CONNECTIONS.increment();
+            loops[next].register(client);
+            next += step;
+            if (next >= loops.length) {
+                next = first;
+            }
+        }
+    }
+
+    /**
+     * Thread that multiplexes many connections over a single Selector
+     */
+    static class EventLoop extends Thread {
+
+        /**
+         * Selector watching every connection owned by this loop
+         */
+        private final Selector selector;
+
+        /**
+         * Connections handed over by the acceptor that still need registering
+         */
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Work handed to this loop by other threads, e.g. responses to offloaded requests
+         */
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Idle, header and body deadlines of the connections on this loop, advanced by the loop itself
+         */
+        private final TimerWheel deadlines = new TimerWheel(100, 512);
+
+        EventLoop(int index) throws IOException {
+            super("NioEventLoop-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Queues a newly accepted connection for this loop, called from the acceptor thread
+         * @param client connection to register
+         */
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        /**
+         * Queues work to run on this loop's thread, called from other threads
+         * @param task work touching the loop's connections
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    //wakes up at least once a tick so deadlines fire on time
+                    selector.select(deadlines.getTickMillis());
+                    registerPending();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+
+                    deadlines.advance(System.currentTimeMillis());
+                } catch (IOException e) {
+                    System.out.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Runs the work other threads have queued for this loop
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Event loop task error: " + e);
+                }
+            }
+        }
+
+        /**
+         * Registers the connections queued by the acceptor with the selector
+         */
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(key, this));
+                } catch (IOException e) {
+                    //the connection was counted when it was accepted
+                    OPEN.decrementAndGet();
+                    ServerMetrics.CONNECTIONS.decrement();
+                    try {
+                        client.close();
+                    } catch (IOException ignored) {
+                        //the connection is being dropped anyway
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single client connection on an event loop
+     */
+    static class Connection {
+
+        private final SelectionKey key;
+        private final SocketChannel channel;
+
+        /**
+         * Event loop that owns the connection
+         */
+        private final EventLoop loop;
+
+        /**
+         * Bytes received that have not been parsed yet
+         */
+        private final ByteBuffer in = ByteBuffer.allocate(8192);
+
+        /**
+         * Turns the bytes of the connection into requests
+         */
+        private final HttpRequestParser parser = new HttpRequestParser();
+
+        /**
+         * Response bytes still waiting to be written, null until a response is ready
+         */
+        private ByteBuffer[] out;
+
+        /**
+         * Status line and headers of the current response, reused across requests
+         */
+        private ByteBuffer headers;
+
+        /**
+         * Body streamed after the pending headers, null if the response has none
+         */
+        private ResponseBody content;
+
+        /**
+         * Bytes written after a streamed body, null if there are none
+         */
+        private ByteBuffer trailer;
+
+        /**
+         * Responses to pipelined requests waiting to go out together, allocated when first needed
+         */
+        private ByteBuffer batch;
+
+        /**
+         * Request parsed while responses were batched, answered once they are written, e.g. a POST
+         */
+        private HttpRequest deferred;
+
+        /**
+         * When the deferred request was parsed
+         */
+        private long deferredStarted;
+
+        /**
+         * Whether the connection stays open once the pending response is written
+         */
+        private boolean keepAlive;
+
+        /**
+         * Number of requests answered on this connection so far
+         */
+        private int handled = 0;
+
+        /**
+         * Wheel the connection's deadlines are scheduled on
+         */
+        private final TimerWheel deadlines;
+
+        /**
+         * Pending deadline for the current phase: waiting idle, reading headers or reading a body
+         */
+        private TimerWheel.Timeout deadline;
+
+        /**
+         * Whether the headers of the request being read have all arrived
+         */
+        private boolean readingBody = false;
+
+        /**
+         * Whether a request is being answered on another thread, during which nothing is read
+         */
+        private boolean awaitingResponse = false;
+
+        /**
+         * When the request being answered was parsed, 0 if the response is not to a request, e.g. a 408
+         */
+        private long started = 0;
+
+        /**
+         * When the first bytes of the request being read arrived
+         */
+        private long readStarted = System.nanoTime();
+
+        /**
+         * Time spent parsing the request being read, over every read it arrived in
+         */
+        private long parseNanos = 0;
+
+        /**
+         * When the response being written was queued
+         */
+        private long writeStarted = 0;
+
+        /**
+         * Method and status code of the response being written, counted once it is out
+         */
+        private String method;
+        private int status;
+
+        /**
+         * Whether the request being answered holds a place under the concurrency limit
+         */
+        private boolean admitted = false;
+
+        /**
+         * Whether the connection has been closed and its place among the open connections given back
+         */
+        private boolean closed = false;
+
+        Connection(SelectionKey key, EventLoop loop) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            this.loop = loop;
+            this.deadlines = loop.deadlines;
+            setDeadline(ServerConfig.requestTimeout);
+        }
+
+        /**
+         * Replaces the pending deadline
+         * @param millis time from now until the connection expires
+         */
+        private void setDeadline(long millis) {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            deadline = deadlines.schedule(this::expire, millis);
+        }
+
+        /**
+         * Reads whatever the client has sent and answers once a full request is buffered
+         * @throws IOException if the channel fails
+         */
+        void read() throws IOException {
+            boolean idle = in.position() == 0 && !parser.hasPartialRequest();
+            int read = channel.read(in);
+            if (read == -1) {
+                close();
+                return;
+            }
+
+            //a request starting on an idle persistent connection gets the header deadline
+            if (idle && read > 0 && handled > 0 && out == null) {
+                setDeadline(ServerConfig.requestTimeout);
+            }
+            if (idle && read > 0) {
+                readStarted = System.nanoTime();
+                parseNanos = 0;
+            }
+
+            processBuffered();
+        }
+
+        /**
+         * Answers the requests that have been buffered in full, in order, while no response is
+         * still being written. Responses to pipelined requests are gathered into the batch
+         * while the client has already sent more, and go out together in one write
+         */
+        private void processBuffered() {
+            if (out != null || awaitingResponse) {
+                return;
+            }
+            while (true) {
+                HttpRequest request;
+                if (deferred != null) {
+                    request = deferred;
+                    deferred = null;
+                    started = deferredStarted;
+                    method = request.method;
+                } else {
+                    request = parseNext();
+                }
+                if (request == null) {
+                    flushBatch();
+                    return;
+                }
+
+                //a request over the concurrency limit is turned away after the responses before it
+                if (!admitted && !admit(request)) {
+                    return;
+                }
+
+                if (request.errorCode == 0 && request.method.equals("POST")) {
+                    //the responses already batched go first, the script's response follows them
+                    if (batch != null && batch.position() > 0) {
+                        deferred = request;
+                        deferredStarted = started;
+                        flushBatch();
+                        return;
+                    }
+                    //stops reading until the response comes back, so requests are still answered in order
+                    awaitingResponse = true;
+                    key.interestOps(0);
+                    try {
+                        OFFLOAD.execute(() -> {
+                            Response response = process(request);
+                            buffer(response);
+                            loop.execute(() -> finish(response));
+                        });
+                    } catch (RejectedExecutionException e) {
+                        //as busy as the bulkhead would find itself, so answered the way it would be
+                        request.releaseBody();
+                        Response response = new Response();
+                        response.isPost = true;
+                        response.setStatusCode(503);
+                        finish(response);
+                    }
+                    return;
+                }
+
+                Response response = process(request);
+                prepare(response);
+                byte[] body = response.allow ? response.body : null;
+                if (!addToBatch(response, body)) {
+                    respond(headers, body, response.content, response.keepAlive);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Takes a place under the concurrency limit for a parsed request, or turns it away with
+         * a 503 and closes the connection once the batched responses are out
+         * @param request the request
+         * @return true if the request may be answered
+         */
+        private boolean admit(HttpRequest request) {
+            if (PartialHTTP1Server.LIMITER.tryAcquire()) {
+                admitted = true;
+                return true;
+            }
+            request.releaseBody();
+            started = 0;
+            respond(ByteBuffer.wrap(ResponseEncoder.SERVICE_UNAVAILABLE), null, null, false);
+            return false;
+        }
+
+        /**
+         * Gives back the place of the request once its response is written
+         */
+        private void release() {
+            if (admitted) {
+                admitted = false;
+                PartialHTTP1Server.LIMITER.release();
+            }
+        }
+
+        /**
+         * Parses the next request out of the bytes received
+         * @return the request, or null if the rest of it has not arrived yet
+         */
+        private HttpRequest parseNext() {
+            in.flip();
+            long parseStart = System.nanoTime();
+            HttpRequest request = parser.parse(in);
+            parseNanos += System.nanoTime() - parseStart;
+            in.compact();
+
+            if (request == null) {
+                //the body gets a deadline of its own once the headers are in
+                if (parser.readingBody() && !readingBody) {
+                    readingBody = true;
+                    setDeadline(ServerConfig.requestTimeout);
+                }
+                return null;
+            }
+            readingBody = false;
+            deadline.cancel();
+            //recorded once per request, however many reads it took to arrive
+            ServerMetrics.PARSE.record(parseNanos);
+            parseNanos = 0;
+            started = System.nanoTime();
+            ServerMetrics.READ.record(started - readStarted);
+            //a request pipelined behind this one is already here
+            readStarted = started;
+            method = request.method;
+            return request;
+        }
+
+        /**
+         * Copies a response into the batch when more requests are waiting to be answered and
+         * the whole response is in memory and fits
+         * @param response response with its headers encoded
+         * @param body body of the response, or null if there is none
+         * @return true if the response was batched, false if it has to be sent on its own
+         */
+        private boolean addToBatch(Response response, byte[] body) {
+            int length = headers.remaining() + (body == null ? 0 : body.length);
+            if (in.position() == 0 || response.content != null || !response.keepAlive
+                    || length > ServerConfig.pipelineBatchBytes) {
+                return false;
+            }
+            if (batch == null) {
+                batch = ByteBuffer.allocate(ServerConfig.pipelineBatchBytes);
+            }
+            if (length > batch.remaining()) {
+                return false;
+            }
+            batch.put(headers);
+            if (body != null) {
+                batch.put(body);
+            }
+
+            //a batched response counts as answered once it is queued
+            long finished = System.nanoTime();
+            ServerMetrics.REQUEST.record(finished - started);
+            ServerMetrics.countRequest(method, status);
+            PartialHTTP1Server.LIMITER.sample(finished - started);
+            release();
+            started = 0;
+            return true;
+        }
+
+        /**
+         * Starts writing the batched responses, if there are any
+         */
+        private void flushBatch() {
+            if (batch == null || batch.position() == 0) {
+                return;
+            }
+            started = 0;
+            keepAlive = true;
+            content = null;
+            trailer = null;
+            writeStarted = System.nanoTime();
+            out = new ByteBuffer[] {batch.flip()};
+            ServerMetrics.BYTES_SENT.add(batch.remaining());
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Builds the response to a request
+         * @param request parsed request
+         * @return the response, a 500 if building it failed
+         */
+        private Response process(HttpRequest request) {
+            try {
+                return WebServerProtocol.SHARED.processRequest(request, PartialHTTP1Server.SERVER_PORT);
+            } catch (RuntimeException e) {
+                System.out.println("Error processing request: " + e);
+                Response response = new Response();
+                response.setStatusCode(500);
+                return response;
+            }
+        }
+
+        /**
+         * Reads a CGI script's streamed output into memory, on the offloading thread, so the
+         * event loop never waits on the script. The response then has a Content-Length
+         * @param response response to an offloaded request
+         */
+        private static void buffer(Response response) {
+            if (!(response.content instanceof CgiOutputBody)) {
+                return;
+            }
+            try {
+                byte[] output = ((CgiOutputBody) response.content).readFully();
+                response.setBody(output);
+                response.setLength("" + output.length);
+            } catch (IOException e) {
+                //a script killed part way through is reported as timed out, anything else failed
+                response.setStatusCode(e instanceof InterruptedIOException ? 504 : 500);
+                response.setKeepAlive(false);
+            }
+            response.setChunked(false);
+            response.closeContent();
+        }
+
+        /**
+         * Sends the response to the request last parsed, on the loop's thread
+         * @param response the response
+         */
+        private void finish(Response response) {
+            awaitingResponse = false;
+            if (!key.isValid()) {
+                //the connection went away while the response was being built
+                response.closeContent();
+                return;
+            }
+            prepare(response);
+            byte[] body = response.allow ? response.body : null;
+            respond(headers, body, response.content, response.keepAlive);
+        }
+
+        /**
+         * Counts a response and encodes its status line and headers into the buffer this connection reuses
+         * @param response the response
+         */
+        private void prepare(Response response) {
+            handled++;
+            status = response.statusCode;
+
+            //closes the connection once it has served its share of requests
+            if (handled >= ServerConfig.maxKeepAliveRequests) {
+                response.setKeepAlive(false);
+            }
+
+            headers = ResponseEncoder.encode(response, headers);
+        }
+
+        /**
+         * Queues a response and starts writing it
+         * @param headers status line and headers
+         * @param body body of the response, or null if there is none
+         * @param content body streamed from its source after the headers, or null if there is none
+         * @param keepAlive whether the connection stays open after the response
+         */
+        void respond(ByteBuffer headers, byte[] body, ResponseBody content, boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            this.content = content;
+            ByteBuffer trailer = keepAlive ? null : ByteBuffer.wrap(ResponseEncoder.TRAILER);
+            writeStarted = System.nanoTime();
+
+            if (content != null) {
+                //the trailer has to follow the streamed body, unless the client would read it as part of the body
+                out = new ByteBuffer[] {headers};
+                this.trailer = content.length() < 0 ? null : trailer;
+            } else if (body != null && trailer != null) {
+                out = new ByteBuffer[] {headers, ByteBuffer.wrap(body), trailer};
+            } else if (body != null) {
+                out = new ByteBuffer[] {headers, ByteBuffer.wrap(body)};
+            } else {
+                out = new ByteBuffer[] {headers};
+            }
+
+            //responses batched before this one go out in the same write, ahead of it
+            if (batch != null && batch.position() > 0) {
+                ByteBuffer[] withBatch = new ByteBuffer[out.length + 1];
+                withBatch[0] = batch.flip();
+                System.arraycopy(out, 0, withBatch, 1, out.length);
+                out = withBatch;
+            }
+            long bytes = this.trailer != null && content != null ? this.trailer.remaining() : 0;
+            for (ByteBuffer buffer : out) {
+                bytes += buffer.remaining();
+            }
+            //a streamed body of unknown length counts its own bytes as they go out
+            if (content != null && content.length() >= 0) {
+                bytes += content.length();
+            }
+            ServerMetrics.BYTES_SENT.add(bytes);
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the pending response as the socket accepts
+         * @throws IOException if the channel fails
+         */
+        void write() throws IOException {
+            channel.write(out);
+            if (out[out.length - 1].hasRemaining()) {
+                //the socket buffer is full, continue once it drains
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (batch != null) {
+                batch.clear();
+            }
+
+            //streams the body from its source once the headers are out
+            if (content != null) {
+                if (!content.writeTo(channel)) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                closeContent();
+                if (trailer != null) {
+                    out = new ByteBuffer[] {trailer};
+                    trailer = null;
+                    write();
+                    return;
+                }
+            }
+
+            //the latency the concurrency limit follows runs from parsing the request until here
+            if (started != 0) {
+                long finished = System.nanoTime();
+                ServerMetrics.WRITE.record(finished - writeStarted);
+                ServerMetrics.REQUEST.record(finished - started);
+                ServerMetrics.countRequest(method, status);
+                PartialHTTP1Server.LIMITER.sample(finished - started);
+                release();
+                started = 0;
+            }
+
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            //waits for the next request on the same connection
+            out = null;
+            setDeadline(in.position() == 0 && !parser.hasPartialRequest()
+                    ? ServerConfig.keepAliveTimeout : ServerConfig.requestTimeout);
+            key.interestOps(SelectionKey.OP_READ);
+            processBuffered();
+        }
+
+        /**
+         * Releases the source of a streamed body
+         */
+        private void closeContent() {
+            if (content == null) {
+                return;
+            }
+            try {
+                content.close();
+            } catch (IOException e) {
+                //nothing more can be done with the source
+            }
+            content = null;
+        }
+
+        /**
+         * Ends a connection whose client ran out of time: a 408 if a request was due or under way,
+         * otherwise the idle persistent connection is just closed
+         */
+        void expire() {
+            if (!key.isValid() || out != null) {
+                return;
+            }
+            if (handled == 0 || in.position() > 0 || parser.hasPartialRequest()) {
+                respond(ByteBuffer.wrap(ResponseEncoder.REQUEST_TIMEOUT), null, null, false);
+            } else {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection and removes it from the selector
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release();
+            OPEN.decrementAndGet();
+            ServerMetrics.CONNECTIONS.decrement();
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            closeContent();
+            //frees whatever part of a request body was read before the connection closed
+            parser.discard();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //nothing left to do with a broken connection
+            }
+        }
+    }
+}
@@ -1,21 +1,39 @@
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.io.*;
 
 public class PartialHTTP1Server {
 
     public static int SERVER_PORT;
-    public HttpCookie lasttime = new HttpCookie("website", "javapointers");
+
+    /**
+     * Most connections served at once by the thread pool in threads mode
+     */
+    static final int MAX_POOL_THREADS = 50;
+
+    /**
+     * Decides whether a parsed request is answered or turned away, set up once the options are read
+     */
+    static ConcurrencyLimiter LIMITER;
+
+    /**
+     * Scratch space for whatever a turned away client had already sent, one per acceptor thread
+     */
+    private static final ThreadLocal<ByteBuffer> DISCARD = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
 
     public static void main(String[] args) throws IOException {
 
 
         // checks to see if a port number is included in arguments
-        if (args.length != 1) {
-            System.err.println("Usage: java PartialHTTP1Server.java <port number>");
+        if (args.length < 1) {
+            System.err.println("Usage: java PartialHTTP1Server.java <port number> [--option=value ...]");
             System.exit(1);
         }
 
@@ -23,34 +41,70 @@ public class PartialHTTP1Server {
         int portNumber = Integer.parseInt(args[0]);
         SERVER_PORT = portNumber;
 
-        try (
-                // attempts to open a new server socket on given port
-                ServerSocket serverSocket = new ServerSocket(portNumber);
+        // reads any optional settings that follow the port number
+        try {
+            ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        // the limit starts low and follows request latency, up to what the mode can serve at once
+        int maxConcurrency = ServerConfig.maxConcurrency > 0 ? ServerConfig.maxConcurrency
+                : ServerConfig.mode.equals("threads") ? MAX_POOL_THREADS : ServerConfig.maxConnections;
+        LIMITER = new ConcurrencyLimiter(ServerConfig.minConcurrency, maxConcurrency, ServerConfig.adaptiveLimit);
 
-        ) {
-            // create a thread pool to limit number of connections and manage threads
-            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(5, 50, 5000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1)) {
+        // stops the long-lived CGI workers with the server, they would otherwise outlive it
+        if (WebServerProtocol.CGI_WORKERS != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(WebServerProtocol.CGI_WORKERS::shutdown));
+        }
 
-            };
-            // while loop that always runs to continuously accept connections
-            while(true) {
+        // hands the listening socket over to the selector event loops in nio mode
+        if (ServerConfig.mode.equals("nio")) {
+            try {
+                new NioServer(portNumber, ServerConfig.eventLoops, ServerConfig.acceptors).run();
+            } catch (IOException e) {
+                System.out.println("Exception caught when trying to listen on port "
+                        + portNumber + " or listening for a connection");
+                System.out.println(e.getMessage());
+            }
+            return;
+        }
 
-                // attempts to accept client connection
-                Socket clientSocket = serverSocket.accept();
+        try {
+            // attempts to open a new server socket on given port, through a channel
+            // so accepted sockets can take file bodies with FileChannel.transferTo,
+            // one per acceptor when the system can share the port between them
+            ServerSocketChannel[] listeners = listen(portNumber, ServerConfig.acceptors);
 
+            // create a thread pool to limit number of connections and manage threads,
+            // or in virtual mode a virtual thread per connection up to --max-connections.
+            // A connection gets a thread straight away rather than waiting in a queue
+            // behind connections that may sit idle for seconds
+            Executor threadPool;
+            if (ServerConfig.mode.equals("virtual")) {
                 try {
-                    // attempts to create a new thread to handle client connection
-                    threadPool.execute(new WebServerProtocolThread(clientSocket));
-                }
-                // catches exception when thread cannot be created 
-                catch (RejectedExecutionException e) {
-
-                    // sends client 503 response
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                    out.print("HTTP/1.0 503 Service Unavaiable\r\n");
-                    out.close();
+                    threadPool = new VirtualThreadExecutor(ServerConfig.maxConnections);
+                } catch (UnsupportedOperationException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                    return;
                 }
+            } else {
+                threadPool = new ThreadPoolExecutor(5, MAX_POOL_THREADS, 5000, TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+            }
+            // every acceptor but one runs on a thread of its own, the last one on this thread
+            for (int i = 0; i < ServerConfig.acceptors - 1; i++) {
+                ServerSocketChannel listener = listeners[i % listeners.length];
+                new Thread(() -> {
+                    try {
+                        acceptLoop(listener, threadPool);
+                    } catch (IOException e) {
+                        System.out.println("Acceptor stopped: " + e.getMessage());
+                    }
+                }, "Acceptor-" + i).start();
             }
+            acceptLoop(listeners[(ServerConfig.acceptors - 1) % listeners.length], threadPool);
 
         } catch (IOException e) {
             System.out.println("Exception caught when trying to listen on port "
@@ -58,4 +112,96 @@ public class PartialHTTP1Server {
             System.out.println(e.getMessage());
         }
     }
+
+    /**
+     * Accepts connections and hands each to a thread until the listening channel fails
+     * @param serverSocket listening channel
+     * @param threadPool executor connections are served on
+     * @throws IOException if accepting fails
+     */
+    private static void acceptLoop(ServerSocketChannel serverSocket, Executor threadPool) throws IOException {
+        // while loop that always runs to continuously accept connections
+        while(true) {
+
+            // attempts to accept client connection
+            SocketChannel client = serverSocket.accept();
+
+            try {
+                // attempts to create a new thread to handle client connection, the requests
+                // it sends are let in or turned away by the limiter one by one
+                WebServerProtocolThread handler = new WebServerProtocolThread(client.socket());
+                threadPool.execute(() -> {
+                    ServerMetrics.CONNECTIONS.increment();
+                    try {
+                        handler.run();
+                    } finally {
+                        ServerMetrics.CONNECTIONS.decrement();
+                    }
+                });
+            }
+            // catches exception when thread cannot be created, the server has as many connections as it may
+            catch (RejectedExecutionException e) {
+                shed(client);
+            }
+        }
+    }
+
+    /**
+     * Opens the listening channels for the acceptors. Where SO_REUSEPORT is supported each
+     * acceptor gets a channel of its own bound to the same port, and the kernel spreads new
+     * connections across them, so acceptors never wait on each other. Elsewhere there is
+     * one channel, which the acceptors share
+     * @param port port to listen on
+     * @param acceptors number of acceptor threads
+     * @return one channel per acceptor, or a single shared one
+     * @throws IOException if a channel cannot be opened or bound
+     */
+    static ServerSocketChannel[] listen(int port, int acceptors) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(port);
+        ServerSocketChannel first = ServerSocketChannel.open();
+        if (acceptors < 2 || !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            return new ServerSocketChannel[] {first.bind(address)};
+        }
+
+        ServerSocketChannel[] listeners = new ServerSocketChannel[acceptors];
+        listeners[0] = first;
+        for (int i = 0; i < acceptors; i++) {
+            if (i > 0) {
+                listeners[i] = ServerSocketChannel.open();
+            }
+            listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            listeners[i].bind(address);
+        }
+        return listeners;
+    }
+
+    /**
+     * Answers a connection the server has no room for with a 503 and closes it. Nothing
+     * here blocks, so a flood of connections cannot slow down the acceptor: the response
+     * fits in the empty socket buffer of a new connection, and whatever the client already
+     * sent is read and dropped so closing does not reset the connection before the
+     * client reads the 503
+     * @param client connection to turn away
+     */
+    static void shed(SocketChannel client) {
+        ServerMetrics.CONNECTIONS_REJECTED.increment();
+        try {
+            client.configureBlocking(false);
+            client.write(ByteBuffer.wrap(ResponseEncoder.SERVICE_UNAVAILABLE));
+            client.shutdownOutput();
+            ByteBuffer discard = DISCARD.get();
+            discard.clear();
+            while (client.read(discard) > 0) {
+                discard.clear();
+            }
+        } catch (IOException e) {
+            // the client is being turned away anyway
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // nothing left to do with the connection
+            }
+        }
+    }
 }
@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Body of a request, read to exactly the length its Content-Length declared. A body that
+ * fits in a pooled buffer is held in memory, a larger one is spilled to a temporary file as
+ * it arrives, so a large form post takes neither a large array nor a copy per read.
+ * A body is released by everyone holding a reference to it, after which its buffer goes
+ * back to the pool and its file is deleted
+ */
+public final class RequestBody {
+
+    /**
+     * Size of the pooled buffers, larger bodies are spilled to a file. Kept below the
+     * capacity of a pipe so a CGI script's input can be written in one go
+     */
+    static final int BUFFER_BYTES = 16 * 1024;
+
+    /**
+     * Buffers of released bodies, waiting to be reused
+     */
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(256);
+
+    /**
+     * Characters that are escaped with "!" in posted form data
+     */
+    private static final String ENCODING_CHARACTERS = "!*\"();:@$+,/?#[] ";
+
+    /**
+     * Bytes of a body held in memory, null when it is in a file
+     */
+    private byte[] buffer;
+
+    /**
+     * File a large body is held in, null when it is in memory
+     */
+    private final Path file;
+
+    /**
+     * Channel the file is written through while the body arrives, null once it is complete
+     */
+    private FileChannel channel;
+
+    /**
+     * Length of the body in bytes
+     */
+    private long length;
+
+    /**
+     * Number of bytes written so far
+     */
+    private long written = 0;
+
+    /**
+     * References to the body that have not been released
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private RequestBody(byte[] buffer, Path file, FileChannel channel, long length) {
+        this.buffer = buffer;
+        this.file = file;
+        this.channel = channel;
+        this.length = length;
+    }
+
+    /**
+     * Makes room for a body of a known length, in a pooled buffer or in a temporary file
+     * @param length length of the body in bytes
+     * @return an empty body to be written to
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static RequestBody allocate(long length) throws IOException {
+        if (length <= BUFFER_BYTES) {
+            byte[] pooled = POOL.poll();
+            return new RequestBody(pooled != null ? pooled : new byte[BUFFER_BYTES], null, null, length);
+        }
+        Path file = Files.createTempFile("request-body", ".tmp");
+        try {
+            return new RequestBody(null, file, FileChannel.open(file, StandardOpenOption.WRITE), length);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes as much of the body as the buffer holds, leaving any bytes after the body in it
+     * @param source bytes read from the client
+     * @return true once the whole body has been written
+     * @throws IOException if writing the file fails
+     */
+    public boolean write(ByteBuffer source) throws IOException {
+        int count = (int) Math.min(source.remaining(), length - written);
+        if (buffer != null) {
+            source.get(buffer, (int) written, count);
+        } else {
+            ByteBuffer part = source.slice(source.position(), count);
+            while (part.hasRemaining()) {
+                channel.write(part);
+            }
+            source.position(source.position() + count);
+        }
+        written += count;
+        if (written == length && channel != null) {
+            channel.close();
+            channel = null;
+        }
+        return written == length;
+    }
+
+    /**
+     * Gets the length of the body
+     * @return length in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Checks whether the body is held in memory
+     * @return true if bytes() holds it, false if it is in file()
+     */
+    public boolean inMemory() {
+        return buffer != null;
+    }
+
+    /**
+     * Gets the bytes of a body held in memory, only the first length() of them belong to it
+     * @return the buffer
+     */
+    public byte[] bytes() {
+        return buffer;
+    }
+
+    /**
+     * Gets the file a large body is held in
+     * @return the file, null if the body is in memory
+     */
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Adds a reference to the body, for a task that uses it after the request is answered
+     */
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference to the body, the last one returns its buffer to the pool or deletes its file
+     */
+    public void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        if (buffer != null) {
+            POOL.offer(buffer);
+            buffer = null;
+            return;
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Could not delete request body " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Decodes posted form data in a single pass: leading and trailing whitespace is dropped,
+     * each "!" before a reserved character is removed, and a newline is added at the end,
+     * the way the data has always been given to CGI scripts
+     * @return the decoded data, in memory or in a file like any other body
+     * @throws IOException if reading or writing a file fails
+     */
+    public RequestBody decodeForm() throws IOException {
+        if (buffer != null) {
+            int start = 0;
+            int end = (int) length;
+            while (start < end && isSpace(buffer[start])) {
+                start++;
+            }
+            while (end > start && isSpace(buffer[end - 1])) {
+                end--;
+            }
+            //decoding never lengthens the data, so it fits in memory with its newline unless the buffer was full
+            RequestBody decoded = allocate(end - start + 1);
+            byte[] target = decoded.buffer != null ? decoded.buffer : new byte[end - start + 1];
+            int count = decode(buffer, start, end, target);
+            target[count++] = '\n';
+            if (decoded.buffer != null) {
+                decoded.written = count;
+            } else {
+                decoded.write(ByteBuffer.wrap(target, 0, count));
+            }
+            return decoded.complete();
+        }
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(8192);
+
+            //the end of the data is found first, reading back from the end of the file
+            long end = length;
+            scan:
+            while (end > 0) {
+                long from = Math.max(0, end - block.capacity());
+                block.clear().limit((int) (end - from));
+                readFully(in, block, from);
+                for (int i = block.limit() - 1; i >= 0; i--) {
+                    if (!isSpace(block.get(i))) {
+                        end = from + i + 1;
+                        break scan;
+                    }
+                }
+                end = from;
+            }
+
+            RequestBody decoded = allocate(end + 1);
+            //room for a "!" held over from the block before as well as a whole block
+            byte[] out = new byte[block.capacity() + 1];
+            boolean leading = true;
+            boolean escape = false;
+            for (long position = 0; position < end; ) {
+                block.clear().limit((int) Math.min(block.capacity(), end - position));
+                readFully(in, block, position);
+                position += block.limit();
+                int count = 0;
+                for (int i = 0; i < block.limit(); i++) {
+                    byte b = block.get(i);
+                    if (leading && isSpace(b)) {
+                        continue;
+                    }
+                    leading = false;
+                    //a "!" is dropped when a reserved character follows it, even in the next block
+                    if (escape) {
+                        escape = false;
+                        if (ENCODING_CHARACTERS.indexOf(b) != -1) {
+                            out[count++] = b;
+                            continue;
+                        }
+                        out[count++] = '!';
+                    }
+                    if (b == '!') {
+                        escape = true;
+                        continue;
+                    }
+                    out[count++] = b;
+                }
+                decoded.write(ByteBuffer.wrap(out, 0, count));
+            }
+            if (escape) {
+                decoded.write(ByteBuffer.wrap(new byte[] {'!', '\n'}));
+            } else {
+                decoded.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            }
+            return decoded.complete();
+        }
+    }
+
+    /**
+     * Ends a body written with less data than was made room for
+     * @return this body, with its length cut to what was written
+     * @throws IOException if closing the file fails
+     */
+    private RequestBody complete() throws IOException {
+        length = written;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        return this;
+    }
+
+    /**
+     * Decodes part of an array into another
+     * @return number of bytes written
+     */
+    private static int decode(byte[] source, int start, int end, byte[] target) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            byte b = source[i];
+            if (b == '!' && i + 1 < end && ENCODING_CHARACTERS.indexOf(source[i + 1]) != -1) {
+                b = source[++i];
+            }
+            target[count++] = b;
+        }
+        return count;
+    }
+
+    /**
+     * Fills a buffer from a file
+     * @param position offset in the file of the first byte
+     */
+    private static void readFully(FileChannel in, ByteBuffer block, long position) throws IOException {
+        while (block.hasRemaining()) {
+            if (in.read(block, position + block.position()) < 0) {
+                throw new IOException("Request body file is shorter than its length");
+            }
+        }
+    }
+
+    /**
+     * Checks whether a byte is whitespace as String.trim sees it
+     */
+    private static boolean isSpace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+}
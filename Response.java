@@ -1,5 +1,5 @@
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.HttpCookie;
 import java.util.HashMap;
 
 /**
@@ -26,11 +26,26 @@ public class Response {
      */
     public String encoding;
 
+    /**
+     * Request headers the content depends on, null if it does not vary
+     */
+    public String vary;
+
     /**
      * Holds the length of the file content
      */
     public String length;
 
+    /**
+     * Indicates whether the body is sent with chunked transfer coding because its length is not known
+     */
+    public boolean chunked = false;
+
+    /**
+     * Part of the file sent in a 206 response, or the file length in a 416 response
+     */
+    public String contentRange;
+
     /**
      * Type and subtype of the file
      */
@@ -56,10 +71,39 @@ public class Response {
      */
     public byte[] body;
 
+    /**
+     * Body streamed from its source when it is too large to hold in body, e.g. a file
+     */
+    public ResponseBody content;
+
+    /**
+     * Holds key (status code, message) key-value pairs, shared by every response
+     */
+    static final HashMap<Integer, String> STATUS_MESSAGES = new HashMap<>();
+
+    static {
+        STATUS_MESSAGES.put(304, "Not Modified");
+        STATUS_MESSAGES.put(400, "Bad Request");
+        STATUS_MESSAGES.put(403, "Forbidden");
+        STATUS_MESSAGES.put(404, "Not Found");
+        STATUS_MESSAGES.put(408, "Request Timeout");
+        STATUS_MESSAGES.put(500, "Internal Server Error");
+        STATUS_MESSAGES.put(501, "Not Implemented");
+        STATUS_MESSAGES.put(503, "Service Unavailable");
+        STATUS_MESSAGES.put(505, "HTTP Version Not Supported");
+        STATUS_MESSAGES.put(411, "Length Required");
+        STATUS_MESSAGES.put(413, "Payload Too Large");
+        STATUS_MESSAGES.put(405, "Method Not Allowed");
+        STATUS_MESSAGES.put(204, "No Content");
+        STATUS_MESSAGES.put(206, "Partial Content");
+        STATUS_MESSAGES.put(416, "Range Not Satisfiable");
+        STATUS_MESSAGES.put(504, "Gateway Timeout");
+    }
+
     /**
      * Holds key (status code, message) key-value pairs
      */
-    public HashMap<Integer, String> responseCode = new HashMap<>();
+    public HashMap<Integer, String> responseCode = STATUS_MESSAGES;
 
     /**
      * Indicates the system to print response out to 
@@ -72,26 +116,30 @@ public class Response {
     public boolean isPost = false;
 
     /**
-     * Response cookie
-     * */
-    public HttpCookie lasttime;
+     * Indicates whether the response starts a session when the request has no live one,
+     * set by handlers whose resources tell users apart, e.g. CGI scripts
+     */
+    public boolean startsSession = false;
+
+    /**
+     * Value of the Set-Cookie header starting a session, null if the response starts none
+     */
+    public String cookie;
 
     /**
-     * Constructor for response that populates responseCode Hashtable
+     * HTTP version written in the status line
+     */
+    public String version = "HTTP/1.0";
+
+    /**
+     * Indicates whether the connection stays open for another request after this response
+     */
+    public boolean keepAlive = false;
+
+    /**
+     * Constructor for response, the status messages are shared so nothing is populated per response
      */
     public Response(){
-        responseCode.put(304, "Not Modified");
-        responseCode.put(400, "Bad Request");
-        responseCode.put(403, "Forbidden");
-        responseCode.put(404, "Not Found");
-        responseCode.put(408, "Request Timeout");
-        responseCode.put(500, "Internal Server Error");
-        responseCode.put(501, "Not Implemented");
-        responseCode.put(503, "Service Unavailable");
-        responseCode.put(505, "HTTP Version Not Supported");
-        responseCode.put(411, "Length Required");
-        responseCode.put(405, "Method Not Allowed");
-        responseCode.put(204, "No Content");
     }
 
     /**
@@ -115,7 +163,45 @@ public class Response {
      * @param statusLine Status message for the HTTP response
      */
     public void setStatusLine(String statusLine) {
-        this.statusLine = "HTTP/1.0 " + statusLine;
+        this.statusLine = version + " " + statusLine;
+    }
+
+    /**
+     * Sets version
+     * @param version HTTP version written in the status line, e.g. "HTTP/1.1"
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * Sets startsSession
+     * @param startsSession Specifies whether the response starts a session for a request without one
+     */
+    public void setStartsSession(boolean startsSession) {
+        this.startsSession = startsSession;
+    }
+
+    /**
+     * Sets keepAlive
+     * @param keepAlive Specifies whether the connection stays open after this response
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Gets the Connection header line for the response
+     * @return the header line, or an empty string when HTTP/1.0 closes the connection by default
+     */
+    private String connectionHeader() {
+        if (keepAlive) {
+            return "Connection: keep-alive\r\n";
+        }
+        if (version.equals("HTTP/1.1")) {
+            return "Connection: close\r\n";
+        }
+        return "";
     }
 
     /**
@@ -134,6 +220,14 @@ public class Response {
         this.encoding = encoding;
     }
 
+    /**
+     * Sets vary
+     * @param vary Request headers that selected the content, e.g. "Accept-Encoding"
+     */
+    public void setVary(String vary) {
+        this.vary = vary;
+    }
+
     /**
      * Sets length 
      * @param length Length of the file 
@@ -142,6 +236,22 @@ public class Response {
         this.length = length;
     }
 
+    /**
+     * Sets chunked
+     * @param chunked Specifies whether the body is sent in chunks instead of with a Content-Length
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Sets contentRange
+     * @param contentRange Content-Range value, e.g. "bytes 0-499/1234"
+     */
+    public void setContentRange(String contentRange) {
+        this.contentRange = contentRange;
+    }
+
     /**
      * Sets type
      * @param type Type and subtype of a file separated by "/" character
@@ -174,6 +284,14 @@ public class Response {
         this.modifiedSince = modifiedSince;
     }
 
+    /**
+     * Sets cookie
+     * @param cookie Set-Cookie value, e.g. "SID=0123abcd; Path=/"
+     */
+    public void setCookie(String cookie) {
+        this.cookie = cookie;
+    }
+
     /**
      * Sets body
      * @param body Encodes the file content in bytes
@@ -182,6 +300,29 @@ public class Response {
         this.body = body;
     }
 
+    /**
+     * Sets content
+     * @param content Body streamed to the client in place of body
+     */
+    public void setContent(ResponseBody content) {
+        this.content = content;
+    }
+
+    /**
+     * Releases the source of a streamed body, e.g. when the response is not sent
+     */
+    public void closeContent() {
+        if (content == null) {
+            return;
+        }
+        try {
+            content.close();
+        } catch (IOException e) {
+            //nothing more can be done with the source
+        }
+        content = null;
+    }
+
     /**
      * Prints out the HTTP response based on status code and file content
      * @param out PrintWriter system to print out HTTP response to
@@ -190,23 +331,47 @@ public class Response {
         //if it's a post request, send it to the PostRequest String method
         if (this.isPost) { postToString(out); return; }
 
-        //Handles responses with status codes other than 200
-        if (this.responseCode.containsKey(this.statusCode)) {
-            out.write("HTTP/1.0 " + statusCode + " " + responseCode.get(statusCode));
+        //Handles responses with status codes other than 200 and 206
+        if (this.responseCode.containsKey(this.statusCode) && this.statusCode != 206) {
+            out.write(version + " " + statusCode + " " + responseCode.get(statusCode) + "\r\n");
             //Not modified status code requires expires date
             if(this.statusCode == 304) {
-                out.write("\r\nExpires: Sat, 21 Jul 2021 11:00:00 GMT\r\n");
+                out.write("Expires: Sat, 21 Jul 2021 11:00:00 GMT\r\n");
+            }
+            //Range not satisfiable status code tells the client the length of the file
+            if(this.statusCode == 416 && this.contentRange != null) {
+                out.write("Content-Range: " + this.contentRange + "\r\n");
+            }
+            //error responses have no body, said so the connection can carry on to the next request
+            if (this.statusCode >= 400) {
+                out.write("Content-Length: 0\r\n");
             }
-            out.write("\r\n\r\n");
+            out.write(connectionHeader());
+            out.write("\r\n");
             return;
         }
-        //Handles responses with 200 status code
-        out.write("HTTP/1.0 200 OK\r\n");
+        //Handles responses with 200 and 206 status codes
+        if (this.statusCode == 206) {
+            out.write(version + " 206 Partial Content\r\n");
+        } else {
+            out.write(version + " 200 OK\r\n");
+        }
         out.write("Content-Type: " + this.type + "\r\n");
         out.write("Content-Length: " + this.length + "\r\n");
+        if (this.contentRange != null) {
+            out.write("Content-Range: " + this.contentRange + "\r\n");
+        }
         out.write("Last-Modified: " + this.lastModified + "\r\n");
         out.write("Content-Encoding: " + this.encoding + "\r\n");
+        if (this.vary != null) {
+            out.write("Vary: " + this.vary + "\r\n");
+        }
+        if (this.cookie != null) {
+            out.write("Set-Cookie: " + this.cookie + "\r\n");
+        }
         out.write("Allow: GET, POST, HEAD" + "\r\n");
+        out.write("Accept-Ranges: bytes\r\n");
+        out.write(connectionHeader());
         out.write("Expires: Sat, 21 Jul 2021 11:00:00 GMT\r\n\r\n");
 
     }
@@ -218,14 +383,27 @@ public class Response {
     public void postToString(PrintWriter out) {
 
         if (this.responseCode.containsKey(this.statusCode)) {
-            out.write("HTTP/1.0 " + statusCode + " " + responseCode.get(statusCode));
-            out.write("\r\n\r\n");
+            out.write(version + " " + statusCode + " " + responseCode.get(statusCode) + "\r\n");
+            if (this.statusCode >= 400) {
+                out.write("Content-Length: 0\r\n");
+            }
+            out.write(connectionHeader());
+            out.write("\r\n");
             return;
         }
-        out.write("HTTP/1.0 200 OK\r\n");
-        out.write("Content-Length: "+ this.length+ "\r\n");
+        out.write(version + " 200 OK\r\n");
+        //a streamed body of unknown length is either chunked or ends with the connection
+        if (this.chunked) {
+            out.write("Transfer-Encoding: chunked\r\n");
+        } else if (this.length != null) {
+            out.write("Content-Length: "+ this.length+ "\r\n");
+        }
         out.write("Content-Type: " + this.type+ "\r\n");
+        if (this.cookie != null) {
+            out.write("Set-Cookie: " + this.cookie + "\r\n");
+        }
         out.write("Allow: GET, POST, HEAD" + "\r\n");
+        out.write(connectionHeader());
         out.write("Expires: Sat, 21 Jul 2021 11:00:00 GMT\r\n\r\n");
     }
 }
@@ -0,0 +1,25 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Body of a response that is written to the client straight from its source
+ * instead of being held in a byte array on the heap
+ */
+public interface ResponseBody extends Closeable {
+
+    /**
+     * Gets the number of bytes in the body
+     * @return length of the body in bytes, or -1 if it is not known until the body has been written
+     */
+    long length();
+
+    /**
+     * Writes as much of the rest of the body as the channel accepts. A blocking channel
+     * is called until this returns true, a non-blocking one again once it is writable
+     * @param channel channel connected to the client
+     * @return true once the whole body has been written
+     * @throws IOException if reading the source or writing the channel fails
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+}
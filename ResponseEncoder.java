@@ -0,0 +1,192 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the status line and headers of a Response as bytes, producing exactly what
+ * Response.toString and postToString print. Status lines and header names are encoded
+ * once when the class loads, and values are copied straight into a buffer the caller
+ * reuses, so encoding a response allocates nothing in the common case
+ */
+public class ResponseEncoder {
+
+    /**
+     * Encoded "HTTP/1.0 code message\r\n" lines indexed by status code
+     */
+    private static final byte[][] STATUS_LINES_10 = new byte[600][];
+
+    /**
+     * Encoded "HTTP/1.1 code message\r\n" lines indexed by status code
+     */
+    private static final byte[][] STATUS_LINES_11 = new byte[600][];
+
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] EMPTY_BODY = ascii("Content-Length: 0\r\n");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+    private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    private static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+    private static final byte[] VARY = ascii("Vary: ");
+    private static final byte[] SET_COOKIE = ascii("Set-Cookie: ");
+    private static final byte[] ALLOW = ascii("Allow: GET, POST, HEAD\r\n");
+    private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+    private static final byte[] EXPIRES = ascii("Expires: Sat, 21 Jul 2021 11:00:00 GMT\r\n");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+
+    /**
+     * Extra line endings the server sends after the body of a response on a closing connection
+     */
+    static final byte[] TRAILER = ascii("\r\n\r\n");
+
+    /**
+     * Complete response sent when a client does not send its request in time
+     */
+    static final byte[] REQUEST_TIMEOUT = ascii("HTTP/1.0 408 Request Timeout\r\nContent-Length: 0\r\n\r\n");
+
+    /**
+     * Complete response sent to a connection turned away because the server is at its limit
+     */
+    static final byte[] SERVICE_UNAVAILABLE = ascii("HTTP/1.0 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n\r\n");
+
+    static {
+        for (Integer code : Response.STATUS_MESSAGES.keySet()) {
+            STATUS_LINES_10[code] = ascii("HTTP/1.0 " + code + " " + Response.STATUS_MESSAGES.get(code) + "\r\n");
+            STATUS_LINES_11[code] = ascii("HTTP/1.1 " + code + " " + Response.STATUS_MESSAGES.get(code) + "\r\n");
+        }
+        STATUS_LINES_10[200] = ascii("HTTP/1.0 200 OK\r\n");
+        STATUS_LINES_11[200] = ascii("HTTP/1.1 200 OK\r\n");
+    }
+
+    /**
+     * Encodes the status line and headers of a response
+     * @param response response to encode
+     * @param buffer buffer to reuse, or null to allocate one
+     * @return buffer holding the encoded headers ready to be written, which is
+     *         a new larger buffer if the one given was too small
+     */
+    public static ByteBuffer encode(Response response, ByteBuffer buffer) {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(512);
+        }
+        while (true) {
+            buffer.clear();
+            if (tryEncode(response, buffer)) {
+                buffer.flip();
+                return buffer;
+            }
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        }
+    }
+
+    /**
+     * Encodes the response into the buffer
+     * @param response response to encode
+     * @param buffer buffer to write into
+     * @return false if the buffer was too small
+     */
+    private static boolean tryEncode(Response response, ByteBuffer buffer) {
+        boolean http11 = response.version.equals("HTTP/1.1");
+        byte[][] statusLines = http11 ? STATUS_LINES_11 : STATUS_LINES_10;
+        byte[] connection = response.keepAlive ? KEEP_ALIVE : (http11 ? CLOSE : null);
+
+        //Handles responses with status codes other than 200 and 206
+        if (response.responseCode.containsKey(response.statusCode) && response.statusCode != 206) {
+            if (!put(buffer, statusLines[response.statusCode])) {
+                return false;
+            }
+            //Not modified status code requires expires date
+            if (response.statusCode == 304 && !response.isPost && !put(buffer, EXPIRES)) {
+                return false;
+            }
+            //Range not satisfiable status code tells the client the length of the file
+            if (response.statusCode == 416 && !response.isPost && response.contentRange != null
+                    && !putHeader(buffer, CONTENT_RANGE, response.contentRange)) {
+                return false;
+            }
+            //error responses have no body, said so the connection can carry on to the next request
+            if (response.statusCode >= 400 && !put(buffer, EMPTY_BODY)) {
+                return false;
+            }
+            return putConnection(buffer, connection) && put(buffer, CRLF);
+        }
+
+        //Handles responses with 200 and 206 status codes
+        if (!put(buffer, statusLines[response.statusCode == 206 ? 206 : 200])) {
+            return false;
+        }
+        if (response.isPost) {
+            //a streamed body of unknown length is either chunked or ends with the connection
+            boolean framed = response.chunked ? put(buffer, CHUNKED)
+                    : response.length == null || putHeader(buffer, CONTENT_LENGTH, response.length);
+            return framed
+                    && putHeader(buffer, CONTENT_TYPE, response.type)
+                    && (response.cookie == null || putHeader(buffer, SET_COOKIE, response.cookie))
+                    && put(buffer, ALLOW)
+                    && putConnection(buffer, connection)
+                    && put(buffer, EXPIRES)
+                    && put(buffer, CRLF);
+        }
+        return putHeader(buffer, CONTENT_TYPE, response.type)
+                && putHeader(buffer, CONTENT_LENGTH, response.length)
+                && (response.contentRange == null || putHeader(buffer, CONTENT_RANGE, response.contentRange))
+                && putHeader(buffer, LAST_MODIFIED, response.lastModified)
+                && putHeader(buffer, CONTENT_ENCODING, response.encoding)
+                && (response.vary == null || putHeader(buffer, VARY, response.vary))
+                && (response.cookie == null || putHeader(buffer, SET_COOKIE, response.cookie))
+                && put(buffer, ALLOW)
+                && put(buffer, ACCEPT_RANGES)
+                && putConnection(buffer, connection)
+                && put(buffer, EXPIRES)
+                && put(buffer, CRLF);
+    }
+
+    /**
+     * Writes a header line made of a pre-encoded name and a value
+     * @return false if the buffer was too small
+     */
+    private static boolean putHeader(ByteBuffer buffer, byte[] name, String value) {
+        if (!put(buffer, name)) {
+            return false;
+        }
+        //a missing value prints as "null", the same as the PrintWriter form
+        String text = value == null ? "null" : value;
+        if (buffer.remaining() < text.length() + 2) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+        return put(buffer, CRLF);
+    }
+
+    /**
+     * Writes the Connection header if the response has one
+     * @return false if the buffer was too small
+     */
+    private static boolean putConnection(ByteBuffer buffer, byte[] connection) {
+        return connection == null || put(buffer, connection);
+    }
+
+    /**
+     * Writes pre-encoded bytes
+     * @return false if the buffer was too small
+     */
+    private static boolean put(ByteBuffer buffer, byte[] bytes) {
+        if (buffer.remaining() < bytes.length) {
+            return false;
+        }
+        buffer.put(bytes);
+        return true;
+    }
+
+    /**
+     * Encodes text that only uses ASCII characters
+     * @param text text to encode
+     * @return encoded bytes
+     */
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable map from request path prefixes to handlers, held as a trie over the characters
+ * of the prefixes. Finding the handler for a path walks it once, so routing costs time in
+ * the length of the path, allocates nothing and needs no locking however many threads share it.
+ * A prefix only matches whole path segments: "/cgi_bin/" matches everything under that
+ * directory and "/server-status" matches itself but not "/server-status.html"
+ * @param <H> type of the handlers
+ */
+public final class Router<H> {
+
+    /**
+     * Node of the trie, children are kept sorted by character and found by binary search
+     */
+    private static final class Node<H> {
+
+        final char[] labels;
+        final Node<H>[] children;
+        final H handler;
+
+        Node(char[] labels, Node<H>[] children, H handler) {
+            this.labels = labels;
+            this.children = children;
+            this.handler = handler;
+        }
+
+        Node<H> child(char c) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char label = labels[middle];
+                if (label < c) {
+                    low = middle + 1;
+                } else if (label > c) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Collects routes before the trie is built
+     * @param <H> type of the handlers
+     */
+    public static final class Builder<H> {
+
+        private final Map<String, H> routes = new TreeMap<>();
+        private H fallback;
+
+        /**
+         * Routes every path starting with a prefix to a handler, the longest matching prefix wins
+         * @param prefix path prefix, e.g. "/" or "/cgi_bin/"
+         * @param handler handler of the paths
+         * @return this builder
+         */
+        public Builder<H> route(String prefix, H handler) {
+            if (prefix.isEmpty()) {
+                throw new IllegalArgumentException("empty route prefix");
+            }
+            routes.put(prefix, handler);
+            return this;
+        }
+
+        /**
+         * Sets the handler of paths no prefix matches
+         * @param handler handler of the paths, null to have find return null for them
+         * @return this builder
+         */
+        public Builder<H> fallback(H handler) {
+            this.fallback = handler;
+            return this;
+        }
+
+        /**
+         * @return a router of the routes added so far
+         */
+        public Router<H> build() {
+            return new Router<>(freeze("", routes), fallback);
+        }
+
+        /**
+         * Builds the node for the routes that share a prefix
+         * @param prefix characters leading to the node
+         * @param routes routes starting with the prefix, sorted
+         * @return the node
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <H> Node<H> freeze(String prefix, Map<String, H> routes) {
+            H handler = null;
+            TreeMap<Character, Map<String, H>> byNext = new TreeMap<>();
+            for (Map.Entry<String, H> route : routes.entrySet()) {
+                String path = route.getKey();
+                if (path.length() == prefix.length()) {
+                    handler = route.getValue();
+                } else {
+                    byNext.computeIfAbsent(path.charAt(prefix.length()), c -> new TreeMap<>())
+                            .put(path, route.getValue());
+                }
+            }
+
+            char[] labels = new char[byNext.size()];
+            Node<H>[] children = new Node[byNext.size()];
+            int i = 0;
+            for (Map.Entry<Character, Map<String, H>> next : byNext.entrySet()) {
+                labels[i] = next.getKey();
+                children[i] = freeze(prefix + next.getKey(), next.getValue());
+                i++;
+            }
+            return new Node<>(labels, children, handler);
+        }
+    }
+
+    private final Node<H> root;
+    private final H fallback;
+
+    private Router(Node<H> root, H fallback) {
+        this.root = root;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Finds the handler of a path
+     * @param path request target, e.g. "/cgi_bin/upcase.cgi"
+     * @return handler of the longest prefix matching whole segments of the path, the fallback if none does
+     */
+    public H find(String path) {
+        H match = fallback;
+        Node<H> node = root;
+        int length = path.length();
+        for (int i = 0; i < length && node != null; i++) {
+            char c = path.charAt(i);
+            //a prefix ending in "/" covers everything below it, any other one has to end a segment
+            if (node.handler != null && (c == '/' || c == '?' || path.charAt(i - 1) == '/')) {
+                match = node.handler;
+            }
+            node = node.child(c);
+        }
+        if (node != null && node.handler != null) {
+            match = node.handler;
+        }
+        return match;
+    }
+}
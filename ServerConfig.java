@@ -0,0 +1,309 @@
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Holds the optional startup settings given to PartialHTTP1Server after the port number.
+ * Each setting is passed as "--name=value"
+ */
+public class ServerConfig {
+
+    /**
+     * How connections are handled: "threads" (thread pool, the default), "virtual"
+     * (one virtual thread per connection) or "nio" (selector event loops)
+     */
+    public static String mode = "threads";
+
+    /**
+     * Number of threads accepting connections, each with its own listening socket where SO_REUSEPORT is supported
+     */
+    public static int acceptors = 1;
+
+    /**
+     * Number of selector event loop threads used in nio mode
+     */
+    public static int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Largest number of connections open at once in virtual and nio mode
+     */
+    public static int maxConnections = 10000;
+
+    /**
+     * Path a GET of which returns the server's metrics in Prometheus text format, empty to turn it off
+     */
+    public static String statusPath = "/server-status";
+
+    /**
+     * Whether the number of requests answered at once follows request latency
+     */
+    public static boolean adaptiveLimit = true;
+
+    /**
+     * Smallest the adaptive concurrency limit is cut to
+     */
+    public static int minConcurrency = 4;
+
+    /**
+     * Largest the adaptive concurrency limit grows to, 0 for what the mode can serve at once
+     */
+    public static int maxConcurrency = 0;
+
+    /**
+     * Milliseconds a client has to send the headers of a request, and again its body, before a 408 is sent
+     */
+    public static int requestTimeout = 5000;
+
+    /**
+     * Milliseconds a persistent connection may sit idle between requests before it is closed
+     */
+    public static int keepAliveTimeout = 5000;
+
+    /**
+     * Largest number of requests served over one persistent connection
+     */
+    public static int maxKeepAliveRequests = 100;
+
+    /**
+     * Byte budget of the in-memory static file cache, 0 turns the cache off
+     */
+    public static long cacheBytes = 64L * 1024 * 1024;
+
+    /**
+     * Largest file kept in the in-memory cache, bigger files are streamed from disk
+     */
+    public static long cacheMaxFileBytes = 1024 * 1024;
+
+    /**
+     * Byte budget of memory-mapped files, 0 turns mapping off
+     */
+    public static long mmapBytes = 256L * 1024 * 1024;
+
+    /**
+     * Largest file that is memory-mapped, bigger files are streamed from disk
+     */
+    public static long mmapMaxFileBytes = 32L * 1024 * 1024;
+
+    /**
+     * Whether file metadata is cached and kept current with a WatchService
+     */
+    public static boolean metadataCache = true;
+
+    /**
+     * Largest number of files whose metadata is cached
+     */
+    public static int metadataCacheEntries = 10000;
+
+    /**
+     * Number of long-lived workers kept per CGI script, 0 starts a new process for every POST
+     */
+    public static int cgiWorkers = 0;
+
+    /**
+     * Paths of the CGI scripts that speak the worker protocol, e.g. "/cgi_bin/upcase.cgi".
+     * Only these are given to workers, every other script gets a new process for every POST
+     */
+    public static Set<String> cgiWorkerScripts = new HashSet<>();
+
+    /**
+     * Milliseconds a CGI script has to start answering, and to finish, before it is killed
+     */
+    public static int cgiTimeout = 10000;
+
+    /**
+     * Largest number of CGI scripts run at once
+     */
+    public static int cgiThreads = 8;
+
+    /**
+     * Largest number of CGI requests waiting for a script to finish before new ones get a 503
+     */
+    public static int cgiQueue = 16;
+
+    /**
+     * Largest number of bytes of responses to pipelined requests gathered into one write, 0 writes every response on its own
+     */
+    public static int pipelineBatchBytes = 32 * 1024;
+
+    /**
+     * Largest request body accepted before answering 413, bodies too large for a pooled buffer are spilled to a file
+     */
+    public static int maxBodyBytes = 16 * 1024 * 1024;
+
+    /**
+     * Milliseconds a session may go unused before it is dropped, 0 turns sessions off
+     */
+    public static long sessionTimeout = 30 * 60 * 1000;
+
+    /**
+     * Largest number of live sessions, past which responses start no new ones
+     */
+    public static int maxSessions = 1000000;
+
+    /**
+     * Reads the settings that follow the port number
+     * @param args command line arguments given to the server
+     * @throws IllegalArgumentException if a setting is unknown or has a bad value
+     */
+    public static void parse(String[] args) {
+        //the first argument is always the port number
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int equals = arg.indexOf("=");
+            //every setting must look like --name=value
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Malformed option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "mode":
+                    if (!value.equals("threads") && !value.equals("virtual") && !value.equals("nio")) {
+                        throw new IllegalArgumentException("Unknown mode: " + value);
+                    }
+                    mode = value;
+                    break;
+                case "max-connections":
+                    maxConnections = parsePositive(name, value);
+                    break;
+                case "status-path":
+                    if (!value.isEmpty() && !value.startsWith("/")) {
+                        throw new IllegalArgumentException("--status-path must start with /: " + value);
+                    }
+                    statusPath = value;
+                    break;
+                case "adaptive-limit":
+                    adaptiveLimit = parseBoolean(name, value);
+                    break;
+                case "min-concurrency":
+                    minConcurrency = parsePositive(name, value);
+                    break;
+                case "max-concurrency":
+                    maxConcurrency = (int) parseNonNegative(name, value);
+                    break;
+                case "request-timeout":
+                    requestTimeout = parsePositive(name, value);
+                    break;
+                case "keep-alive-timeout":
+                    keepAliveTimeout = parsePositive(name, value);
+                    break;
+                case "max-keep-alive-requests":
+                    maxKeepAliveRequests = parsePositive(name, value);
+                    break;
+                case "cache-bytes":
+                    cacheBytes = parseNonNegative(name, value);
+                    break;
+                case "cache-max-file-bytes":
+                    cacheMaxFileBytes = parseNonNegative(name, value);
+                    break;
+                case "mmap-bytes":
+                    mmapBytes = parseNonNegative(name, value);
+                    break;
+                case "mmap-max-file-bytes":
+                    mmapMaxFileBytes = parseNonNegative(name, value);
+                    break;
+                case "metadata-cache":
+                    metadataCache = parseBoolean(name, value);
+                    break;
+                case "metadata-cache-entries":
+                    metadataCacheEntries = parsePositive(name, value);
+                    break;
+                case "cgi-workers":
+                    cgiWorkers = (int) parseNonNegative(name, value);
+                    break;
+                case "cgi-worker-scripts":
+                    cgiWorkerScripts = new HashSet<>();
+                    for (String script : value.split(",")) {
+                        if (!script.startsWith("/")) {
+                            throw new IllegalArgumentException("--cgi-worker-scripts paths must start with /: " + script);
+                        }
+                        cgiWorkerScripts.add(script);
+                    }
+                    break;
+                case "cgi-timeout":
+                    cgiTimeout = parsePositive(name, value);
+                    break;
+                case "cgi-threads":
+                    cgiThreads = parsePositive(name, value);
+                    break;
+                case "cgi-queue":
+                    cgiQueue = (int) parseNonNegative(name, value);
+                    break;
+                case "pipeline-batch-bytes":
+                    pipelineBatchBytes = (int) parseNonNegative(name, value);
+                    break;
+                case "max-body-bytes":
+                    maxBodyBytes = parsePositive(name, value);
+                    break;
+                case "session-timeout":
+                    sessionTimeout = parseNonNegative(name, value);
+                    break;
+                case "max-sessions":
+                    maxSessions = parsePositive(name, value);
+                    break;
+                case "acceptors":
+                    acceptors = parsePositive(name, value);
+                    break;
+                case "event-loops":
+                    eventLoops = parsePositive(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+
+    /**
+     * Parses a setting that must be a positive integer
+     * @param name name of the setting, used in the error message
+     * @param value value given on the command line
+     * @return the parsed value
+     */
+    static int parsePositive(String name, String value) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be an integer: " + value);
+        }
+        if (parsed <= 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive: " + value);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a setting that must be a whole number, zero included
+     * @param name name of the setting, used in the error message
+     * @param value value given on the command line
+     * @return the parsed value
+     */
+    static long parseNonNegative(String name, String value) {
+        long parsed;
+        try {
+            parsed = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be an integer: " + value);
+        }
+        if (parsed < 0) {
+            throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a setting that must be true or false
+     * @param name name of the setting, used in the error message
+     * @param value value given on the command line
+     * @return the parsed value
+     */
+    static boolean parseBoolean(String name, String value) {
+        if (value.equals("true")) {
+            return true;
+        }
+        if (value.equals("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("--" + name + " must be true or false: " + value);
+    }
+}
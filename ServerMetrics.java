@@ -0,0 +1,164 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the whole server, recorded with LongAdders so
+ * connection threads never contend on a lock, and rendered in Prometheus text format
+ * by the status endpoint
+ */
+public class ServerMetrics {
+
+    /**
+     * Methods requests are counted under, anything else is counted as "other"
+     */
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "other"};
+
+    /**
+     * Requests answered, one counter per method and status code, created on first use
+     */
+    private static final AtomicReferenceArray<LongAdder> REQUESTS = new AtomicReferenceArray<>(METHODS.length * 600);
+
+    /**
+     * Connections open, whether a request is being answered on them or they sit idle
+     */
+    static final LongAdder CONNECTIONS = new LongAdder();
+
+    /**
+     * Connections turned away with a 503 because the server had as many open as it may
+     */
+    static final LongAdder CONNECTIONS_REJECTED = new LongAdder();
+
+    /**
+     * Bytes written to clients, headers included
+     */
+    static final LongAdder BYTES_SENT = new LongAdder();
+
+    /**
+     * Time from a request arriving to its response being written
+     */
+    static final LatencyHistogram REQUEST = new LatencyHistogram();
+
+    /**
+     * Time spent receiving a request, from its first bytes to its last
+     */
+    static final LatencyHistogram READ = new LatencyHistogram();
+
+    /**
+     * Time spent parsing request bytes
+     */
+    static final LatencyHistogram PARSE = new LatencyHistogram();
+
+    /**
+     * Time spent finding a file and building the response to a GET or HEAD
+     */
+    static final LatencyHistogram LOOKUP = new LatencyHistogram();
+
+    /**
+     * Time a POST spends waiting for and running its CGI script
+     */
+    static final LatencyHistogram CGI = new LatencyHistogram();
+
+    /**
+     * Time spent writing a response
+     */
+    static final LatencyHistogram WRITE = new LatencyHistogram();
+
+    /**
+     * Content type of the status endpoint's response
+     */
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    /**
+     * Counts an answered request
+     * @param method method of the request
+     * @param status status code of the response
+     */
+    static void countRequest(String method, int status) {
+        int row = METHODS.length - 1;
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                row = i;
+                break;
+            }
+        }
+        int index = row * 600 + (status >= 0 && status < 600 ? status : 0);
+        LongAdder counter = REQUESTS.get(index);
+        if (counter == null) {
+            REQUESTS.compareAndSet(index, null, new LongAdder());
+            counter = REQUESTS.get(index);
+        }
+        counter.increment();
+    }
+
+    /**
+     * Renders every metric in Prometheus text format
+     * @return the metrics, one sample per line
+     */
+    static String render() {
+        StringBuilder out = new StringBuilder(8192);
+
+        out.append("# TYPE http_requests_total counter\n");
+        for (int i = 0; i < REQUESTS.length(); i++) {
+            LongAdder counter = REQUESTS.get(i);
+            if (counter != null) {
+                out.append("http_requests_total{method=\"").append(METHODS[i / 600])
+                        .append("\",code=\"").append(i % 600).append("\"} ").append(counter.sum()).append('\n');
+            }
+        }
+        counter(out, "http_response_bytes_total", BYTES_SENT.sum());
+
+        out.append("# TYPE http_request_duration_seconds histogram\n");
+        REQUEST.writeTo(out, "http_request_duration_seconds", "");
+        out.append("# TYPE http_phase_duration_seconds histogram\n");
+        READ.writeTo(out, "http_phase_duration_seconds", "phase=\"read\"");
+        PARSE.writeTo(out, "http_phase_duration_seconds", "phase=\"parse\"");
+        LOOKUP.writeTo(out, "http_phase_duration_seconds", "phase=\"lookup\"");
+        CGI.writeTo(out, "http_phase_duration_seconds", "phase=\"cgi\"");
+        WRITE.writeTo(out, "http_phase_duration_seconds", "phase=\"write\"");
+
+        gauge(out, "http_connections_open", CONNECTIONS.sum());
+        counter(out, "http_connections_rejected_total", CONNECTIONS_REJECTED.sum());
+        ConcurrencyLimiter limiter = PartialHTTP1Server.LIMITER;
+        if (limiter != null) {
+            gauge(out, "http_requests_in_flight", limiter.getInFlight());
+            gauge(out, "http_requests_limit", limiter.getLimit());
+            counter(out, "http_requests_shed_total", limiter.getRejected());
+        }
+
+        CgiBulkhead bulkhead = WebServerProtocol.CGI_BULKHEAD;
+        gauge(out, "cgi_active", bulkhead.getActive());
+        gauge(out, "cgi_queue_depth", bulkhead.getQueued());
+        counter(out, "cgi_rejected_total", bulkhead.getRejected());
+        counter(out, "cgi_timeouts_total", bulkhead.getTimedOut());
+        counter(out, "cgi_killed_total", bulkhead.getKilled());
+
+        SessionStore sessions = WebServerProtocol.SESSIONS;
+        if (sessions != null) {
+            gauge(out, "sessions_live", sessions.getLive());
+            counter(out, "sessions_created_total", sessions.getCreated());
+            counter(out, "sessions_expired_total", sessions.getExpired());
+        }
+
+        ContentCache content = WebServerProtocol.CONTENT_CACHE;
+        counter(out, "content_cache_hits_total", content.getHits());
+        counter(out, "content_cache_misses_total", content.getMisses());
+        counter(out, "content_cache_evictions_total", content.getEvictions());
+        counter(out, "content_cache_compressions_total", content.getCompressions());
+        gauge(out, "content_cache_bytes", content.getTotalBytes());
+
+        MappedFileCache mapped = WebServerProtocol.MAPPED_CACHE;
+        counter(out, "mapped_cache_hits_total", mapped.getHits());
+        counter(out, "mapped_cache_misses_total", mapped.getMisses());
+        counter(out, "mapped_cache_evictions_total", mapped.getEvictions());
+        gauge(out, "mapped_cache_bytes", mapped.getTotalBytes());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+}
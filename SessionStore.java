@@ -0,0 +1,329 @@
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions identified by a cookie holding a random 128-bit id. The sessions are kept in
+ * lock-striped open addressing tables, so threads only contend when they touch the same
+ * stripe and a session costs one small object and a timer entry. Idle sessions are dropped
+ * by a timer wheel: each session has one entry in it, and when the entry comes due a session
+ * that was used in the meantime is scheduled again for the rest of its idle time, so nothing
+ * ever scans every session
+ */
+public class SessionStore {
+
+    /**
+     * Name of the cookie holding the session id
+     */
+    public static final String COOKIE_NAME = "SID";
+
+    /**
+     * Number of stripes, a power of two
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Starting number of slots in a stripe, a power of two
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Attributes sent with every new cookie after the id. There is no Max-Age, the cookie
+     * lasts as long as the browser and the server decides when the session is idle
+     */
+    private static final String COOKIE_ATTRIBUTES = "; Path=/; HttpOnly; SameSite=Lax";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * A user's session, found again from the id in its cookie
+     */
+    public final class Session implements Runnable {
+
+        /**
+         * High and low halves of the id
+         */
+        final long high;
+        final long low;
+
+        /**
+         * Time the session was last used in milliseconds since the epoch
+         */
+        volatile long lastAccess;
+
+        Session(long high, long low, long now) {
+            this.high = high;
+            this.low = low;
+            this.lastAccess = now;
+        }
+
+        /**
+         * Gets the value of the cookie identifying the session
+         * @return the id as 32 hexadecimal digits
+         */
+        public String id() {
+            char[] id = new char[32];
+            for (int i = 0; i < 16; i++) {
+                id[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xf];
+                id[16 + i] = HEX[(int) (low >>> (60 - 4 * i)) & 0xf];
+            }
+            return new String(id);
+        }
+
+        /**
+         * Runs when the session's timer entry comes due, on the wheel's thread
+         */
+        public void run() {
+            long idle = System.currentTimeMillis() - lastAccess;
+            if (idle < idleMillis) {
+                wheel.schedule(this, idleMillis - idle);
+                return;
+            }
+            if (stripe(low).remove(this)) {
+                live.decrementAndGet();
+                expired.increment();
+            }
+        }
+    }
+
+    /**
+     * Open addressing table of the sessions whose ids fall in the stripe, guarded by the stripe itself
+     */
+    private static final class Stripe {
+
+        Session[] table = new Session[INITIAL_CAPACITY];
+        int size = 0;
+
+        synchronized Session find(long high, long low) {
+            int mask = table.length - 1;
+            for (int i = slot(low, mask); table[i] != null; i = (i + 1) & mask) {
+                Session session = table[i];
+                if (session.low == low && session.high == high) {
+                    return session;
+                }
+            }
+            return null;
+        }
+
+        synchronized void add(Session session) {
+            //kept at most half full so probe sequences stay short
+            if (2 * (size + 1) > table.length) {
+                Session[] old = table;
+                table = new Session[old.length * 2];
+                for (Session moved : old) {
+                    if (moved != null) {
+                        insert(moved);
+                    }
+                }
+            }
+            insert(session);
+            size++;
+        }
+
+        synchronized boolean remove(Session session) {
+            int mask = table.length - 1;
+            int i = slot(session.low, mask);
+            while (table[i] != session) {
+                if (table[i] == null) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = null;
+            size--;
+
+            //shifts later entries of the probe sequence back so lookups never stop at the gap
+            for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+                int home = slot(table[j].low, mask);
+                boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!between) {
+                    table[i] = table[j];
+                    table[j] = null;
+                    i = j;
+                }
+            }
+            return true;
+        }
+
+        private void insert(Session session) {
+            int mask = table.length - 1;
+            int i = slot(session.low, mask);
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = session;
+        }
+
+        private static int slot(long low, int mask) {
+            return (int) low & mask;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Drops idle sessions, advanced by a thread of its own
+     */
+    private final TimerWheel wheel = new TimerWheel(1000, 1024);
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Milliseconds a session may go unused before it is dropped
+     */
+    private final long idleMillis;
+
+    /**
+     * Largest number of live sessions, past which no new ones are made
+     */
+    private final int maxSessions;
+
+    private final AtomicInteger live = new AtomicInteger();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Constructor for the store
+     * @param idleMillis milliseconds a session may go unused before it is dropped
+     * @param maxSessions largest number of live sessions
+     */
+    public SessionStore(long idleMillis, int maxSessions) {
+        this.idleMillis = idleMillis;
+        this.maxSessions = maxSessions;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        wheel.start("SessionExpiry");
+    }
+
+    /**
+     * Keeps the session of a request alive, or starts a new one when the handler asked for one
+     * and the request is being answered with content without a live session, in which case its
+     * cookie is set on the response. Other responses, e.g. static files, never carry a cookie
+     * @param request Client's HTTP request
+     * @param response response built for the request
+     */
+    public void track(HttpRequest request, Response response) {
+        Session session = find(request.header("Cookie"));
+        if (session != null) {
+            session.lastAccess = System.currentTimeMillis();
+            return;
+        }
+        if (!response.startsSession || (response.statusCode != 200 && response.statusCode != 206)) {
+            return;
+        }
+        session = create();
+        if (session != null) {
+            response.setCookie(COOKIE_NAME + "=" + session.id() + COOKIE_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Finds the live session named by a Cookie header
+     * @param cookieHeader value of the Cookie header, null if the request did not have it
+     * @return the session, or null if the header names none that is still live
+     */
+    public Session find(String cookieHeader) {
+        if (cookieHeader == null) {
+            return null;
+        }
+        //the header is a list of "name=value" pairs separated by ";"
+        int length = cookieHeader.length();
+        int start = 0;
+        while (start < length) {
+            int end = cookieHeader.indexOf(';', start);
+            if (end == -1) {
+                end = length;
+            }
+            while (start < end && cookieHeader.charAt(start) == ' ') {
+                start++;
+            }
+            int value = start + COOKIE_NAME.length() + 1;
+            if (end - value >= 32 && cookieHeader.startsWith(COOKIE_NAME, start) && cookieHeader.charAt(value - 1) == '=') {
+                long high = parseHex(cookieHeader, value);
+                long low = parseHex(cookieHeader, value + 16);
+                boolean exact = end - value == 32 || cookieHeader.charAt(value + 32) == ' ';
+                if (high != -1 && low != -1 && exact) {
+                    return stripe(low).find(high, low);
+                }
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Starts a new session
+     * @return the session, or null if the store already holds as many as it may
+     */
+    public Session create() {
+        if (live.incrementAndGet() > maxSessions) {
+            live.decrementAndGet();
+            return null;
+        }
+        //-1 stands for an unparsable half, so no id is given one
+        long high;
+        long low;
+        do {
+            high = random.nextLong();
+            low = random.nextLong();
+        } while (high == -1 || low == -1);
+        Session session = new Session(high, low, System.currentTimeMillis());
+        stripe(session.low).add(session);
+        wheel.schedule(session, idleMillis);
+        created.increment();
+        return session;
+    }
+
+    /**
+     * Gets the number of live sessions
+     * @return sessions not yet dropped
+     */
+    public int getLive() {
+        return live.get();
+    }
+
+    /**
+     * Gets the number of sessions started
+     * @return sessions started since the server started
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * Gets the number of sessions dropped for being idle
+     * @return sessions expired since the server started
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Picks the stripe of an id by the high bits of its low half, the slot uses the low bits
+     */
+    private Stripe stripe(long low) {
+        return stripes[(int) (low >>> 58) & (STRIPES - 1)];
+    }
+
+    /**
+     * Parses 16 lower case hexadecimal digits
+     * @return the value, or -1 if a character is not a digit
+     */
+    private static long parseHex(String text, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; i++) {
+            char c = text.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel for tracking large numbers of deadlines cheaply.
+ * Scheduling and cancelling are O(1) and safe from any thread; expired tasks are run
+ * by whichever single thread advances the wheel, either a thread started with start()
+ * or an owner such as an event loop calling advance() itself
+ */
+public class TimerWheel {
+
+    /**
+     * A scheduled task that can be cancelled before it runs
+     */
+    public static final class Timeout {
+
+        /**
+         * Time in milliseconds at which the task runs
+         */
+        final long deadline;
+
+        /**
+         * Task to run once the deadline passes
+         */
+        final Runnable task;
+
+        /**
+         * Full turns of the wheel left before the task is due
+         */
+        long rounds;
+
+        /**
+         * Set when the task should no longer run, the entry is dropped when its slot comes round
+         */
+        volatile boolean cancelled = false;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Length of one slot in milliseconds
+     */
+    private final long tickMillis;
+
+    /**
+     * Slots of the wheel, each holding the timeouts that fall in it
+     */
+    private final ArrayDeque<Timeout>[] slots;
+
+    /**
+     * Mask used to turn a tick number into a slot index, the slot count is a power of two
+     */
+    private final int mask;
+
+    /**
+     * Timeouts scheduled since the wheel last advanced
+     */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Time the wheel started at, tick numbers count from here
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Next tick whose slot has not been processed yet
+     */
+    private long tick = 0;
+
+    /**
+     * Constructor for the wheel
+     * @param tickMillis length of one slot in milliseconds, the precision of every deadline
+     * @param slotCount number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int slotCount) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Gets the length of one slot
+     * @return tick length in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules a task to run once a delay has passed
+     * @param task task to run
+     * @param delayMillis delay in milliseconds
+     * @return handle that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(System.currentTimeMillis() + delayMillis, task);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs every task whose deadline has passed. Must only be called by one thread at a time
+     * @param now current time in milliseconds
+     */
+    public void advance(long now) {
+        long target = (now - startTime) / tickMillis;
+        while (tick <= target) {
+            transferPending();
+
+            ArrayDeque<Timeout> slot = slots[(int) (tick & mask)];
+            int count = slot.size();
+            for (int i = 0; i < count; i++) {
+                Timeout timeout = slot.poll();
+                if (timeout.cancelled) {
+                    continue;
+                }
+                //entries a whole turn or more away stay in the slot
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    slot.add(timeout);
+                    continue;
+                }
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Timer task failed: " + e);
+                }
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into the slot their deadline falls in
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long due = (timeout.deadline - startTime + tickMillis - 1) / tickMillis;
+            //a deadline that has already passed runs on the current tick
+            long slotTick = Math.max(due, tick);
+            timeout.rounds = (slotTick - tick) / slots.length;
+            slots[(int) (slotTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Starts a daemon thread that advances the wheel once per tick
+     * @param name name of the thread
+     */
+    public void start(String name) {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                advance(System.currentTimeMillis());
+            }
+        }, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+}
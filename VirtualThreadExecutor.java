@@ -0,0 +1,81 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs each task on its own virtual thread, with a cap on how many may run at once.
+ * Blocking reads, sleeps and CGI process waits park the virtual thread instead of
+ * holding a platform thread, so the cap can be far higher than a thread pool's maximum.
+ * Virtual threads are looked up when the executor is created, so the server still builds
+ * and runs its other modes on Java 17
+ */
+public class VirtualThreadExecutor implements Executor {
+
+    /**
+     * One permit per task allowed to run at the same time
+     */
+    private final Semaphore permits;
+
+    /**
+     * Creates virtual threads named after the connection handler. Unlike a Thread.Builder
+     * the factory is safe to share between the acceptor threads
+     */
+    private final ThreadFactory factory;
+
+    /**
+     * Constructor for the executor
+     * @param maxConcurrent largest number of tasks that may run at once
+     * @throws UnsupportedOperationException if the Java runtime has no virtual threads
+     */
+    public VirtualThreadExecutor(int maxConcurrent) {
+        this.permits = new Semaphore(maxConcurrent);
+        this.factory = virtualThreadFactory();
+    }
+
+    /**
+     * Builds the factory the way Thread.ofVirtual().name("WebServerProtocolThread-", 0).factory()
+     * would, through reflection since the methods only exist from Java 21
+     * @return factory of named virtual threads
+     * @throws UnsupportedOperationException if the Java runtime has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            Method factory = builderType.getMethod("factory");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = name.invoke(builder, "WebServerProtocolThread-", 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            //missing before Java 19, and a preview feature that is off by default until Java 21
+            throw new UnsupportedOperationException("--mode=virtual requires Java 21 or later, running on Java "
+                    + Runtime.version().feature());
+        }
+    }
+
+    /**
+     * Starts the task on a new virtual thread
+     * @param task task to run
+     * @throws RejectedExecutionException if the concurrency limit has been reached
+     */
+    public void execute(Runnable task) {
+        //rejects straight away instead of queueing so the caller can answer 503
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Concurrency limit reached");
+        }
+        try {
+            factory.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }).start();
+        } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+    }
+}
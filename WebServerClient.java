@@ -7,15 +7,30 @@ public class WebServerClient {
 
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 2) {
+        if (args.length < 2) {
             System.err.println(
-                    "Usage: java EchoClient <host name> <port number>");
+                    "Usage: java WebServerClient <host name> <port number> [--option=value ...]");
             System.exit(1);
         }
 
         String hostName = args[0];
         int portNumber = Integer.parseInt(args[1]);
 
+        // any options turn the client into a load generator instead of sending one request from stdin
+        if (args.length > 2) {
+            LoadGenerator load = new LoadGenerator(hostName, portNumber);
+            try {
+                load.parse(args, 2);
+                load.run();
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                System.exit(1);
+            }
+            return;
+        }
+
         try (
                 Socket kkSocket = new Socket(hostName, portNumber);
                 PrintWriter out = new PrintWriter(kkSocket.getOutputStream(), true);
@@ -2,13 +2,13 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles processes related to interpretting HTTP requests
@@ -16,55 +16,91 @@ import java.util.*;
 public class WebServerProtocol {
 
     /**
-     * Array of supported commands
+     * Contents of recently served small files, shared by every connection
      */
-    String[] supportedCommandsArray = {"GET", "POST", "HEAD"};
+    static final ContentCache CONTENT_CACHE = new ContentCache(ServerConfig.cacheBytes, ServerConfig.cacheMaxFileBytes);
+
     /**
-     * List of supported commands
+     * Memory mappings of recently served mid-sized files, shared by every connection
      */
-    List<String> supportedCommands = Arrays.asList(supportedCommandsArray);
+    static final MappedFileCache MAPPED_CACHE = new MappedFileCache(ServerConfig.mmapBytes, ServerConfig.mmapMaxFileBytes);
 
     /**
-     * Array of unsupported commands
+     * Filesystem metadata of recently requested resources, shared by every connection
      */
-    String[] unsupportedCommandsArray = {"PUT", "LINK", "UNLINK", "DELETE"};
+    static final FileMetadataCache METADATA_CACHE = new FileMetadataCache(ServerConfig.metadataCache, ServerConfig.metadataCacheEntries);
 
     /**
-     * List of unsupported commands
+     * CGI environment variables that are the same for every request, worked out once at startup
      */
-    List<String> unsupportedCommands = Arrays.asList(unsupportedCommandsArray);
+    static final Map<String, String> CGI_ENVIRONMENT = Map.of(
+            "SERVER_NAME", lookUpHostName(),
+            "GATEWAY_INTERFACE", "CGI/1.1");
 
     /**
-     * Array of subtypes of "text" type 
+     * Long-lived CGI script workers, null when every POST starts its script in a new process
      */
-    String[] textArray = {"html", "plain"};
+    static final CgiWorkerPool CGI_WORKERS =
+            ServerConfig.cgiWorkers > 0 ? new CgiWorkerPool(ServerConfig.cgiWorkers, ServerConfig.cgiTimeout, CGI_ENVIRONMENT) : null;
+
     /**
-     * List of subtypes of "text" type
+     * Threads CGI scripts run on, kept apart from the threads serving connections
      */
-    List<String> text = Arrays.asList(textArray);
+    static final CgiBulkhead CGI_BULKHEAD = new CgiBulkhead(ServerConfig.cgiThreads, ServerConfig.cgiQueue);
 
     /**
-     * Array of subtypes of "image" type 
+     * Standard input of a script whose request had no body
      */
-    String[] imageArray = {"gif", "jpeg", "png"};
+    private static final byte[] EMPTY_FORM = {'\n'};
+
     /**
-     * List of subtypes of "image" type
+     * Sessions of the users the server is talking to, null when sessions are turned off
      */
-    List<String> image = Arrays.asList(imageArray);
+    static final SessionStore SESSIONS =
+            ServerConfig.sessionTimeout > 0 ? new SessionStore(ServerConfig.sessionTimeout, ServerConfig.maxSessions) : null;
 
     /**
-     * Array of subtypes of "application" type 
+     * Builds the response to a request that has passed the version and method checks
      */
-    String[] applicationArray = {"octet-stream", "pdf", "x-gzip", "zip"};
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * @param protocol protocol handling the request
+         * @param request Client's HTTP request
+         * @param response response to fill in, with Allow already cleared for HEAD requests
+         * @param port Port the server is listening on
+         * @return Response object with HTTP response information
+         */
+        Response handle(WebServerProtocol protocol, HttpRequest request, Response response, int port);
+    }
+
     /**
-     * List of subtypes of "application" type
+     * Handlers of request paths, a handler for a new path is plugged in by adding its route here
      */
-    List<String>  application = Arrays.asList(applicationArray);
+    static final Router<Handler> ROUTES = routes();
 
     /**
-     * Type of file requested
+     * Protocol every connection shares, it keeps no state between requests
      */
-    String type = "";
+    static final WebServerProtocol SHARED = new WebServerProtocol();
+
+    /**
+     * Builds the routes of the server
+     * @return router from the static files, CGI scripts and internal endpoints to their handlers
+     */
+    private static Router<Handler> routes() {
+        Router.Builder<Handler> builder = new Router.Builder<Handler>()
+                .route("/", WebServerProtocol::serveFile)
+                .route("/cgi_bin/", WebServerProtocol::serveCgi)
+                //POST targets do not have to start with "/"
+                .fallback(WebServerProtocol::serveFile);
+        //the reserved status path reports the server's metrics instead of a file
+        if (!ServerConfig.statusPath.isEmpty()) {
+            builder.route(ServerConfig.statusPath, WebServerProtocol::serveStatus);
+        }
+        return builder.build();
+    }
 
     /**
      * Processes the client's request 
@@ -73,35 +109,106 @@ public class WebServerProtocol {
      * @return Response object with HTTP response information 
      */
     public Response processInput(String theInput, int port) {
+        return processRequest(parse(theInput), port);
+    }
+
+    /**
+     * Processes the client's request once it has been parsed
+     * @param request Client's HTTP request
+     * @param port Port the server is listening on 
+     * @return Response object with HTTP response information 
+     */
+    public Response processRequest(HttpRequest request, int port) {
+        long start = System.nanoTime();
+        Response response = buildResponse(request, port);
+        //a script still reading the body holds a reference of its own
+        request.releaseBody();
+        setConnectionPersistence(request, response);
+        //the cookie identifies the user across requests and connections, only handlers that ask start one
+        if (SESSIONS != null && request.errorCode == 0) {
+            SESSIONS.track(request, response);
+        }
+        //a POST is timed as CGI, including any wait for the bulkhead, anything else as file lookup
+        if (request.errorCode == 0 && request.method.equals("POST")) {
+            ServerMetrics.CGI.recordSince(start);
+        } else {
+            ServerMetrics.LOOKUP.recordSince(start);
+        }
+        return response;
+    }
+
+    /**
+     * Parses a whole request held in a string, adding the blank line that ends the headers if it is missing
+     * @param theInput Client's HTTP request
+     * @return the parsed request, with errorCode 400 if it was incomplete
+     */
+    public static HttpRequest parse(String theInput) {
+        String message = theInput;
+        if (message.indexOf("\n\n") == -1 && message.indexOf("\r\n\r\n") == -1) {
+            message = message + "\r\n\r\n";
+        }
+        HttpRequest request = new HttpRequestParser().parse(ByteBuffer.wrap(message.getBytes(StandardCharsets.ISO_8859_1)));
+        if (request == null) {
+            request = new HttpRequest();
+            request.errorCode = 400;
+        }
+        return request;
+    }
+
+    /**
+     * Decides whether the connection stays open after the response, and which HTTP version it is sent as.
+     * HTTP/1.1 connections persist unless the client sends "Connection: close",
+     * HTTP/1.0 connections only persist if the client sends "Connection: keep-alive"
+     * @param request Client's HTTP request
+     * @param response Response built for the request
+     */
+    public void setConnectionPersistence(HttpRequest request, Response response) {
+        boolean http11 = request.version.equals("HTTP/1.1");
+        if (http11) {
+            response.setVersion("HTTP/1.1");
+        }
+
+        //looks for a Connection header overriding the version's default
+        boolean keepAlive = http11;
+        String connection = request.header("Connection", "");
+        if (connection.equalsIgnoreCase("close")) {
+            keepAlive = false;
+        } else if (connection.equalsIgnoreCase("keep-alive")) {
+            keepAlive = true;
+        }
+
+        //only responses whose end the client can find without a close are kept alive, error
+        //responses included since they carry Content-Length: 0
+        boolean delimited = response.content == null || response.content.length() >= 0 || response.chunked;
+        //a request that could not be parsed, or whose body length is unknown, leaves the stream
+        //at no known request boundary, so its connection is closed
+        int status = response.statusCode;
+        boolean framed = request.errorCode == 0 && status != 411 && status != 505;
+        response.setKeepAlive(keepAlive && delimited && framed);
+    }
+
+    /**
+     * Builds the response to the client's request
+     * @param request Client's HTTP request
+     * @param port Port the server is listening on 
+     * @return Response object with HTTP response information 
+     */
+    private Response buildResponse(HttpRequest request, int port) {
         //response to be returned 
         Response response = new Response();
 
-        //Command to carry out
-        String command = "";
-        //Resource to access
-        String resource = "";
-        //HTTP Version to verify
-        String HTTPversion = "";
-        //Used to verify If-Modified-Since header
-        String additionalHeader= "";
-        //Date specified by client 
-        String conditionDate = "";
-        //Date the file was last modified
-        String modifiedDate = "";
-
-        //tokenizes input using space and newline as delimeters
-        StringTokenizer input = new StringTokenizer(theInput, " \n");
-
-        //makes sure there are at least 3 tokens to look at
-        if (input.countTokens() < 3) {
-            response.setStatusCode(400);
+        //the request could not be parsed
+        if (request.errorCode != 0) {
+            response.setStatusCode(request.errorCode);
             return response;
         }
 
-        //populates REQUIRED request components
-        command = input.nextToken().trim();
-        resource = input.nextToken().trim();
-        HTTPversion = input.nextToken().trim();
+        //Command to carry out
+        String command = request.method;
+        //Resource to access
+        String resource = request.target;
+        //HTTP Version to verify
+        String HTTPversion = request.version;
 
         //makes sure the resource is properly formatted
         if(resource.indexOf("/") != 0 && !command.equals("POST")) {
@@ -109,23 +216,6 @@ public class WebServerProtocol {
             return response;
         }
 
-        //checks for an "If-Modified-Since" header
-        //gets the modified date in string form
-        if(input.hasMoreTokens() && !command.equals("POST")){
-            additionalHeader=input.nextToken();
-            //makes sure the additional header is If-Modified-Since
-            if(!additionalHeader.equals("If-Modified-Since:")){
-                response.setStatusCode(400);
-                return response;
-            }
-            //Constructs the conditioned modified date string from request
-            StringBuilder br = new StringBuilder();
-            while(input.hasMoreTokens()){
-                br.append(input.nextToken() + " ");
-            }
-            conditionDate = br.toString().trim();
-        }
-
         //checks if version is acceptable
         //returns appropriate response if it isn't
         response.setStatusCode(checkVersionFormat(HTTPversion));
@@ -140,102 +230,304 @@ public class WebServerProtocol {
             return response;
         }
 
-        // outsources implementation to a method that handles post requests
-        if (command.indexOf("POST") != -1) {
-            return processPostRequest(theInput, port);
-        }
-
         //sets "Allow" to false if it is a head request
         if(command.equals("HEAD")) response.setAllow(false);
 
-        //gets resource information
-        String extension = "";
-        int period = resource.indexOf(".");
-        //if the file type is not specified
-        if (period == -1) {
-            type = "application";
-            extension = "octet-stream";
-        }
-        //if the file type is specified
-        else {
-            extension = resource.substring(period + 1);
+        return ROUTES.find(resource).handle(this, request, response, port);
+    }
 
-            if(text.contains(extension)) {
-                type = "text";
-            }
-            else if(image.contains(extension)) {
-                type = "image";
-            }
-            else if(application.contains(extension)) {
-                type = "application";
-            }
-            else {
-                type = "application";
-                extension = "octet-stream";
-            }
+    /**
+     * Runs the CGI script a POST request is for, other requests get the script's file
+     * @param request Client's HTTP request
+     * @param response response to fill in
+     * @param port Port the server is listening on
+     * @return Response object with HTTP response information
+     */
+    private Response serveCgi(HttpRequest request, Response response, int port) {
+        if (request.method.equals("POST")) {
+            return processPostRequest(request, port);
         }
+        return serveFile(request, response, port);
+    }
 
-        //fetch required file
-        File file = null;
-        try {
-            //gets the file
-            file = new File(resource.substring(resource.indexOf("/") + 1));
-
-            //checks if the file exists
-            if(!file.exists()) {
-                response.setStatusCode(404);
-                return response;
-            }
+    /**
+     * Fills in the response to a request for the status path
+     * @param request Client's HTTP request
+     * @param response response to fill in
+     * @param port Port the server is listening on
+     * @return the response, with the metrics in Prometheus text format as its body
+     */
+    private Response serveStatus(HttpRequest request, Response response, int port) {
+        if (request.method.equals("POST")) {
+            response.setStatusCode(405);
+            return response;
+        }
+        byte[] body = ServerMetrics.render().getBytes(StandardCharsets.UTF_8);
+        response.setStatusCode(200);
+        response.setType(ServerMetrics.CONTENT_TYPE);
+        response.setLength("" + body.length);
+        response.setLastModified(HttpDates.format(System.currentTimeMillis()));
+        response.setEncoding("identity");
+        response.setBody(body);
+        return response;
+    }
 
-            //checks if the file is a directory
-            if(file.isDirectory()) {
-                response.setStatusCode(404);
-                return response;
-            }
+    /**
+     * Serves a file under the working directory, a POST is handed to the CGI handling
+     * @param request Client's HTTP request
+     * @param response response to fill in
+     * @param port Port the server is listening on
+     * @return Response object with HTTP response information
+     */
+    private Response serveFile(HttpRequest request, Response response, int port) {
+        // outsources implementation to a method that handles post requests
+        if (request.method.equals("POST")) {
+            return processPostRequest(request, port);
+        }
 
-            // format for the lastModified string
-            SimpleDateFormat sdf = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss");
-            sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        //Command to carry out
+        String command = request.method;
+        //Resource to access
+        String resource = request.target;
+        //Date specified by client, other headers have no effect on the response
+        String conditionDate = request.header("If-Modified-Since");
+        //Whether the request carried an If-Modified-Since header
+        boolean hasCondition = conditionDate != null;
+
+        //fetch required file and what the filesystem knows about it, without any
+        //filesystem calls when nothing has changed since the file was last requested
+        File file = new File(resource.substring(resource.indexOf("/") + 1));
+        FileMetadataCache.Metadata metadata = METADATA_CACHE.lookup(file.toPath());
+
+        //checks if the file exists
+        if(!metadata.exists) {
+            response.setStatusCode(404);
+            return response;
+        }
 
-            //lastModified time of file
-            modifiedDate = sdf.format(file.lastModified());
-            response.setLastModified(modifiedDate + " GMT");
-            response.setLength("" + file.length());
-        } catch(NullPointerException e) {
-            //if the file is not found
+        //checks if the file is a directory
+        if(metadata.directory) {
             response.setStatusCode(404);
+            return response;
+        }
+
+        //lastModified time of file, formatted once per cached file
+        String modifiedDate = metadata.lastModifiedDate;
+        if (modifiedDate == null) {
+            modifiedDate = HttpDates.format(metadata.lastModified);
+            metadata.lastModifiedDate = modifiedDate;
         }
+        response.setLastModified(modifiedDate);
+        response.setLength("" + metadata.length);
 
         //checks if the file is readable
-        if(!Files.isReadable(file.toPath())) {
+        if(!metadata.readable) {
             response.setStatusCode(403);
             return response;
         }
 
         //checks If-Modified-Since condition if needed
-        if(additionalHeader.equals("If-Modified-Since:") && !command.equals("HEAD") && !isModified(conditionDate, modifiedDate)){
+        if(hasCondition && !command.equals("HEAD")
+                && !isModified(HttpDates.parseEpochSeconds(conditionDate), metadata.lastModified)){
             response.setStatusCode(304);
             return response;
         }
 
+        //gets resource type, worked out once per cached file
+        String contentType = metadata.contentType;
+        if (contentType == null) {
+            contentType = contentType(resource);
+            metadata.contentType = contentType;
+        }
+
         //handle 200 status code responses
         response.setStatusCode(200);
-        response.setType(type + "/" + extension);
+        response.setType(contentType);
         response.setEncoding("identity");
 
-        //extract body of the file
-        byte[] body;
-        //reads resource for body of Response
+        //text may be sent compressed, so caches have to keep a copy per Accept-Encoding
+        boolean compressible = isCompressible(contentType);
+        if (compressible) {
+            response.setVary("Accept-Encoding");
+        }
+
+        //HEAD responses have no body to read
+        if (!response.allow) {
+            return response;
+        }
+
+        //a Range request gets only the bytes it asks for, unless If-Range says the file has changed
+        String range = request.header("Range");
+        if (range != null && rangeApplies(request.header("If-Range"), metadata.lastModified)) {
+            long[][] ranges = HttpRanges.parse(range, metadata.length);
+            if (ranges != null) {
+                return rangeResponse(response, file, ranges, metadata.length, contentType);
+            }
+        }
+
+        //small files are served from memory while they have not changed on disk
+        long lastModified = metadata.lastModified;
+        long length = metadata.length;
+        if (CONTENT_CACHE.accepts(length)) {
+            byte[] body = CONTENT_CACHE.get(file.getPath(), lastModified, length);
+            if (body == null) {
+                try {
+                    body = Files.readAllBytes(file.toPath());
+                } catch(IOException e) {
+                    response.setStatusCode(500);
+                    return response;
+                }
+                CONTENT_CACHE.put(file.getPath(), lastModified, body);
+            }
+            response.setBody(body);
+            response.setLength("" + body.length);
+
+            //the gzip variant is built once per version of the file and kept next to it
+            if (compressible && acceptsGzip(request.header("Accept-Encoding"))) {
+                byte[] gzipped = CONTENT_CACHE.getGzipped(file.getPath(), lastModified, length);
+                if (gzipped != null && gzipped != body) {
+                    response.setBody(gzipped);
+                    response.setLength("" + gzipped.length);
+                    response.setEncoding("gzip");
+                }
+            }
+            return response;
+        }
+
+        //mid-sized files are sent from a mapping every request shares, so the page cache holds them
+        if (MAPPED_CACHE.accepts(length)) {
+            ByteBuffer mapped = MAPPED_CACHE.get(file.getPath(), lastModified, length);
+            if (mapped == null) {
+                try {
+                    mapped = MAPPED_CACHE.map(file.getPath(), file.toPath(), lastModified);
+                } catch(IOException e) {
+                    response.setStatusCode(500);
+                    return response;
+                }
+            }
+            MappedBody content = new MappedBody(mapped);
+            response.setContent(content);
+            response.setLength("" + content.length());
+            return response;
+        }
+
+        //streams larger files to the client rather than loading them onto the heap
         try {
-            body = Files.readAllBytes(file.toPath());
-        } catch(Exception e) {
-            body = null;
+            FileBody content = new FileBody(file.toPath());
+            response.setContent(content);
+            response.setLength("" + content.length());
+        } catch(IOException e) {
+            response.setStatusCode(500);
         }
-        response.setBody(body);
 
         return response;
     }
 
+    /**
+     * Checks an If-Range condition, which only lets a Range through when the client's copy
+     * of the file is current. The server sends no entity tags, so only dates can match
+     * @param ifRange value of the If-Range header, null if the request did not have it
+     * @param lastModified time the file was last modified in milliseconds since the epoch
+     * @return true if the Range header should be honored
+     */
+    public boolean rangeApplies(String ifRange, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        return HttpDates.parseEpochSeconds(ifRange) == Math.floorDiv(lastModified, 1000);
+    }
+
+    /**
+     * Fills in a 206 or 416 response for the ranges of a file, the parts are streamed
+     * from the file at their offsets rather than read onto the heap
+     * @param response response with the headers of the whole file already set
+     * @param file file being requested
+     * @param ranges satisfiable ranges from HttpRanges.parse, empty if there are none
+     * @param length length of the file in bytes
+     * @param contentType type of the file
+     * @return the response
+     */
+    private Response rangeResponse(Response response, File file, long[][] ranges, long length, String contentType) {
+        if (ranges.length == 0) {
+            response.setStatusCode(416);
+            response.setContentRange(HttpRanges.unsatisfied(length));
+            return response;
+        }
+
+        try {
+            ResponseBody content;
+            if (ranges.length == 1) {
+                content = new FileBody(file.toPath(), ranges[0][0], ranges[0][1] - ranges[0][0] + 1);
+                response.setContentRange(HttpRanges.contentRange(ranges[0], length));
+            } else {
+                content = new MultipartRangeBody(file.toPath(), ranges, length, contentType);
+                response.setType(MultipartRangeBody.CONTENT_TYPE);
+            }
+            response.setStatusCode(206);
+            response.setContent(content);
+            response.setLength("" + content.length());
+        } catch(IOException e) {
+            response.setStatusCode(500);
+        }
+        return response;
+    }
+
+    /**
+     * Works out the content type of a resource from the extension of its last path segment
+     * @param resource resource path from the request
+     * @return type and subtype separated by "/"
+     */
+    public String contentType(String resource) {
+        return MimeTypes.lookup(resource);
+    }
+
+    /**
+     * Checks whether a content type is worth compressing
+     * @param contentType type and subtype separated by "/"
+     * @return true for text, the other supported types are already compressed
+     */
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/");
+    }
+
+    /**
+     * Checks whether the client accepts gzip, going by an Accept-Encoding header such as
+     * "gzip, deflate" or "br;q=1.0, gzip;q=0.5, *;q=0"
+     * @param acceptEncoding value of the header, null if the request did not have it
+     * @return true if gzip or x-gzip, or else "*", is listed with a non-zero quality
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double wildcard = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding;
+            double quality = 1;
+            int semicolon = coding.indexOf(';');
+            if (semicolon != -1) {
+                name = coding.substring(0, semicolon);
+                String parameter = coding.substring(semicolon + 1).trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            name = name.trim();
+            //an explicit entry decides, whatever the wildcard says
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                return quality > 0;
+            }
+            if (name.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        return wildcard > 0;
+    }
+
     /**
      * Checks if the HTTP version is supported by server
      * @param version version inputted by the client's request
@@ -256,7 +548,7 @@ public class WebServerProtocol {
             return 400;
         }
         //check if version is supported
-        if (versionNum > 1.0 || versionNum <= 0){
+        if (versionNum > 1.1 || versionNum <= 0){
             return 505;
         }
         //version is acceptable
@@ -269,17 +561,20 @@ public class WebServerProtocol {
      * @return status code based on input
      */
     public int checkCommandFormat(String command) {
-        //checks if the command is supported
-        if(supportedCommands.contains(command)) {
-            return 200;
-        }
-        //checks if the command is in list of unimplemented commands
-        else if(unsupportedCommands.contains(command)) {
-            return 501;
+        switch (command) {
+            //the command is supported
+            case "GET", "POST", "HEAD" -> {
+                return 200;
+            }
+            //the command is in list of unimplemented commands
+            case "PUT", "LINK", "UNLINK", "DELETE" -> {
+                return 501;
+            }
+            //the command is nonsense
+            default -> {
+                return 400;
+            }
         }
-        //the command is nonsense
-        return 400;
-
     }
 
     /**
@@ -289,36 +584,27 @@ public class WebServerProtocol {
      * @return true if the modified condition is met or the modified condition isn't a date
      */
     public boolean isModified(String conditionDate, String lastModified) {
-        //obtains the condition date string without the time zone
-        if(conditionDate.indexOf(" GMT") != -1) {
-            conditionDate = conditionDate.substring(0, conditionDate.indexOf(" GMT"));
-        }
-        //set both dates to the same time zone for comparison
-        SimpleDateFormat sdf = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss ZZZ");
-        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-        SimpleDateFormat sdf2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss");
-        sdf2.setTimeZone(TimeZone.getTimeZone("GMT"));
-        Date conDate;
-        Date modDate;
-        //parse condition date to Date
-        try {
-            conDate = sdf2.parse(conditionDate);
-        } catch (ParseException e) {
+        long lastModifiedSeconds = HttpDates.parseEpochSeconds(lastModified);
+        //not a valid last modified date, ignore the condition altogether
+        if (lastModifiedSeconds == -1) {
             return true;
         }
-        //parse modified date to Date
-        try {
-            modDate = sdf2.parse(lastModified);
-        } catch (ParseException e) {
-            //not a valid If-Modified-Since date, ignore the date altogether
-            return true;
-        }
-        //if the modified date is after or the same time as the condition date
-        if(modDate.compareTo(conDate)>=0) {
+        return isModified(HttpDates.parseEpochSeconds(conditionDate), lastModifiedSeconds * 1000);
+    }
+
+    /**
+     * Compares the condition date specified by the client with the last modified time of the resource
+     * @param conditionSeconds date specified in client's request in seconds since the epoch, -1 if it wasn't a date
+     * @param lastModifiedMillis time the file was last modified in milliseconds since the epoch
+     * @return true if the modified condition is met or the modified condition isn't a date
+     */
+    public boolean isModified(long conditionSeconds, long lastModifiedMillis) {
+        //not a valid If-Modified-Since date, ignore the date altogether
+        if (conditionSeconds == -1) {
             return true;
         }
-        //the modified date was before the condition date
-        return false;
+        //HTTP dates only have whole seconds, so the file time is compared at the same precision
+        return Math.floorDiv(lastModifiedMillis, 1000) >= conditionSeconds;
     }
 
     /**
@@ -328,19 +614,17 @@ public class WebServerProtocol {
      * @return Response object that contains the information about the HTTP response
      */
     public Response processPostRequest(String theInput, int port) {
+        return processPostRequest(parse(theInput), port);
+    }
+
+    /**
+     * Processes post requests ONLY 
+     * @param request parsed request that the client sends
+     * @param port given port the Server is listening on 
+     * @return Response object that contains the information about the HTTP response
+     */
+    public Response processPostRequest(HttpRequest request, int port) {
 
-        System.out.println(theInput);
-
-        /*
-        NOTES ON DELIMETER
-            Gets each "word" of the post request (i.e. "POST", "/cgi_bin/basic.cgi", and "HTTP/1.0" would
-            all be different tokens even though they are on the same line). This works because
-            we deliminate by space characters. The input from the jar file Tester doesn't consider different
-            lines to be separated by a newline character, so I modified the code so that we also deliminate
-            by space. We could probably remove the newline character from the delimiter altogether, but I
-            left it in since we did something similar for processRequest().
-        */
-        StringTokenizer input = new StringTokenizer(theInput, " \n");
         //creates new Response object to return
         Response returnResponse = new Response();
 
@@ -348,38 +632,11 @@ public class WebServerProtocol {
         returnResponse.isPost=true;
 
         //e.g. /cgi_bin/upcase.cgi
-        String CGI_PATH = "";
-        //e.g me@mycomputer.
-        String FROM = "";
-        //will hold the User-Agent
-        String USER_AGENT = "";
+        String CGI_PATH = request.target;
         //will hold the Content-Type
-        String CONTENT_TYPE = "";
+        String CONTENT_TYPE = request.header("Content-Type", "");
         //will hold the Content-Length from the REQUEST
-        String CONTENT_LENGTH = "";
-        //will hold the NAME-VALUE pairs from the REQUEST
-        String NAME_VALUE = "";
-
-        // gets each line from the request
-        while (input.hasMoreTokens()) {
-            String temp = input.nextToken().trim();
-            if(temp.equals("POST")){
-                CGI_PATH = input.nextToken().trim();
-            } else if (temp.equals("From:")) {
-                FROM = input.nextToken().trim();
-            } else if (temp.equals("User-Agent:")) {
-                USER_AGENT = input.nextToken().trim();
-            } else if (temp.equals("Content-Type:")) {
-                CONTENT_TYPE = input.nextToken().trim();
-            } else if (temp.equals("Content-Length:")) {
-                CONTENT_LENGTH = input.nextToken().trim();
-            } else if(!temp.equals("HTTP/1.0")){
-                NAME_VALUE = temp;
-            }
-        }
-
-        NAME_VALUE = decodeMessage(NAME_VALUE);
-
+        String CONTENT_LENGTH = request.header("Content-Length", "");
         //checks CONTENT_LENGTH format as specified by the request
         if(CONTENT_LENGTH.equals("")) {
             //makes sure that CONTENT_LENGTH was specified in the request
@@ -402,19 +659,113 @@ public class WebServerProtocol {
         }
 
         //Makes sure the selected file ends with .cgi
-        if(!CGI_PATH.substring(CGI_PATH.length()-4, CGI_PATH.length()).equals(".cgi")){
+        if(!CGI_PATH.endsWith(".cgi")){
             returnResponse.setStatusCode(405);
             return returnResponse;
         }
 
-        //command with request specified parameters to be used for the cgi execution
-        String[] commands = {"/bin/bash", "-c", "echo \""+ NAME_VALUE + "\" | " + CGI_PATH.substring(1)};
+        //the script runs on the CGI bulkhead so slow scripts cannot hold up static files, and
+        //holds the body until it is done with it. If the bulkhead gives up before the script
+        //starts, the reference is dropped here instead
+        RequestBody body = request.body;
+        if (body != null) {
+            body.retain();
+        }
+        AtomicBoolean started = new AtomicBoolean();
+        try {
+            return CGI_BULKHEAD.run(call -> {
+                if (!started.compareAndSet(false, true)) {
+                    return new Response();
+                }
+                try {
+                    return executeCgi(request, port, body, call);
+                } finally {
+                    if (body != null) {
+                        body.release();
+                    }
+                }
+            }, ServerConfig.cgiTimeout);
+        } finally {
+            if (started.compareAndSet(false, true) && body != null) {
+                body.release();
+            }
+        }
+    }
+
+    /**
+     * Runs the CGI script a POST request is for and builds the response from its output
+     * @param request parsed request that the client sends
+     * @param port given port the Server is listening on
+     * @param body body of the request, null if it had none
+     * @param call call on the CGI bulkhead the script's process is started through
+     * @return Response object that contains the information about the HTTP response
+     */
+    private Response executeCgi(HttpRequest request, int port, RequestBody body, CgiBulkhead.Call call) {
+
+        //creates new Response object to return
+        Response returnResponse = new Response();
+
+        //Notes that the response is for a post request
+        returnResponse.isPost=true;
+
+        //scripts tell users apart by the session cookie, so their responses start a session
+        returnResponse.setStartsSession(true);
+
+        //e.g. /cgi_bin/upcase.cgi
+        String CGI_PATH = request.target;
+        //e.g me@mycomputer.
+        String FROM = request.header("From", "");
+        //will hold the User-Agent
+        String USER_AGENT = request.header("User-Agent", "");
+        //will hold the cookies, e.g. the session id
+        String COOKIE = request.header("Cookie", "");
+        //will hold the Content-Length from the REQUEST
+        String CONTENT_LENGTH = request.header("Content-Length", "");
+
+        //the decoded form data the script reads from its standard input
+        RequestBody input = null;
 
         //executes the command and processes the output of the .cgi code
         try {
+            //decoded in one pass, and into a file of its own when the body was spilled to one
+            if (body != null) {
+                input = body.decodeForm();
+            }
+
+            if (CGI_WORKERS != null && ServerConfig.cgiWorkerScripts.contains(CGI_PATH)
+                    && (input == null || input.inMemory())) {
+                //a long-lived worker of a script listed as speaking the worker protocol answers
+                //without a new process being started
+                Map<String, String> environment = new LinkedHashMap<>();
+                //As the client specified in the request
+                environment.put("CONTENT_LENGTH", CONTENT_LENGTH);
+                environment.put("HTTP_FROM", FROM);
+                environment.put("HTTP_USER_AGENT", USER_AGENT);
+                environment.put("HTTP_COOKIE", COOKIE);
+                byte[] output = CGI_WORKERS.call(CGI_PATH.substring(1), port, environment, call,
+                        input == null ? EMPTY_FORM : Arrays.copyOf(input.bytes(), (int) input.length()));
+                //if there is no output from the CGI, special status code is required
+                if (output.length == 0) {
+                    returnResponse.setStatusCode(204);
+                    return returnResponse;
+                }
+                //ALWAYS "text/html" according to the test cases
+                returnResponse.setType("text/html");
+                returnResponse.setBody(output);
+                returnResponse.setLength("" + output.length);
+                returnResponse.setStatusCode(200);
+                return returnResponse;
+            }
+
+            //ordinary scripts are started in a new process for every request
+            //the script's path is passed as an argument, so nothing in the request is run by the shell
+            String[] commands = {"/bin/bash", "-c", "\"$0\"", CGI_PATH.substring(1)};
+
             //starts a process builder to run the desired command
             ProcessBuilder builder = new ProcessBuilder(commands);
 
+            //sets the environment that is the same for every request, worked out at startup
+            builder.environment().putAll(CGI_ENVIRONMENT);
             //sets the environment variables according to the request
             //As the client specified in the request
             builder.environment().put("CONTENT_LENGTH", CONTENT_LENGTH);
@@ -424,66 +775,88 @@ public class WebServerProtocol {
             builder.environment().put("HTTP_FROM", FROM);
             //As the client specified in the request
             builder.environment().put("HTTP_USER_AGENT", USER_AGENT);
-            //This will get the host name of the server
-            InetAddress ip;
-            String hostname="";
-            try {
-                ip = InetAddress.getLocalHost();
-                hostname = ip.getHostName();
-            } catch (Exception e2) {
-                e2.printStackTrace();
-            }
-            builder.environment().put("SERVER_NAME", hostname);
+            //As the client specified in the request, so scripts can tell users apart
+            builder.environment().put("HTTP_COOKIE", COOKIE);
             //This sets the server port as found in the PartialHTTP1Server class
             builder.environment().put("SERVER_PORT", Integer.toString(port));
 
-            Process proc = builder.start();
-            //reads the output of the cgi command
-            BufferedReader stdInput = new BufferedReader(new
-                    InputStreamReader(proc.getInputStream()));
-
-            //takes the output of the cgi execution and combines into one string
-            String s = null;
-            String bodyString ="";
-            while((s=stdInput.readLine()) != null) {
-                //bodyString+= s.trim()+"\n";
-                bodyString += s;
+            //a large body is read by the script straight from its file
+            if (input != null && !input.inMemory()) {
+                builder.redirectInput(input.file().toFile());
             }
 
-            /*if(CGI_PATH.equals("/cgi_bin/param.cgi")) {
-                System.out.println("name: " + NAME_VALUE);
-                System.out.println();
-                System.out.println("body: " + bodyString);
-            }*/
+            //started through the bulkhead, which kills it if the request gives up on it
+            Process proc = call.start(builder);
+
+            //anything held in memory fits in the pipe, so writing it cannot wait on the script
+            if (input == null || input.inMemory()) {
+                try (OutputStream stdin = proc.getOutputStream()) {
+                    if (input == null) {
+                        stdin.write(EMPTY_FORM);
+                    } else {
+                        stdin.write(input.bytes(), 0, (int) input.length());
+                    }
+                } catch (IOException e) {
+                    //the script finished without reading its input
+                }
+            }
+
+            //the output is streamed to the client as the script writes it, in chunks when the
+            //client understands them and otherwise up to the connection closing
+            CgiOutputBody output = new CgiOutputBody(proc, request.version.equals("HTTP/1.1"),
+                    CGI_BULKHEAD, ServerConfig.cgiTimeout);
 
             //if there is no output from the CGI, special status code is required
             //Note that this is not a failure but should still only print out
             //"HTTP/1.0 204 No Content"
-            if (bodyString.length()==0) {
+            if (!output.hasOutput()) {
+                output.close();
                 returnResponse.setStatusCode(204);
                 return returnResponse;
-            } else {
-                //sets the Content-Length for the RESPONSE object
-                returnResponse.setLength(""+bodyString.length());
             }
 
             //sets the Content-Type for the RESPONSE object
             //ALWAYS "text/html" according to the test cases
             returnResponse.setType("text/html");
+            returnResponse.setContent(output);
+            returnResponse.setChunked(request.version.equals("HTTP/1.1"));
 
-            //converts the body of the cgi output into a byte array so we can output the body
-            //in the WebServerProtocolThread class
-            byte[] bodyArray = bodyString.getBytes();
-            returnResponse.setBody(bodyArray);
-
+        } catch (InterruptedIOException e) {
+            //the script ran out of time before it printed anything
+            returnResponse.closeContent();
+            returnResponse.setStatusCode(504);
+            return returnResponse;
         } catch (Exception e) {
-            e.printStackTrace();
+            //a script killed because its request gave up can fail any which way, and nobody gets the response
+            if (!call.isAbandoned()) {
+                e.printStackTrace();
+            }
+            returnResponse.closeContent();
+            returnResponse.setStatusCode(500);
+            return returnResponse;
+        } finally {
+            if (input != null) {
+                input.release();
+            }
         }
 
         returnResponse.setStatusCode(200);
         return returnResponse;
     }
 
+    /**
+     * Looks up the host name of the server, which can take a DNS query
+     * @return the host name, or an empty string if it cannot be found
+     */
+    private static String lookUpHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
     //method for decoding the encoded message included at the end of the POST header
     /*public String decodeMessage(String encodedMessage){
         char encodingCharacters[] = {'!', '*', '\'', '(', ')', ';', ':', '@', '$', '+', ',', '/', '?', '#', '[', ']', ' '};
@@ -501,28 +874,26 @@ public class WebServerProtocol {
         return encodedMessage;
     }*/
 
+    /**
+     * Removes the "!" escaping reserved characters in posted form data, in a single pass
+     * @param encodedMessage form data as it was posted
+     * @return the decoded form data
+     */
     public String decodeMessage(String encodedMessage) {
 
-        //ArrayList<String> encodingCharacters = new ArrayList<String>(Arrays.asList("!", "*", "\'", "(", ")", ";", ":", "@", "$", "+", ",", "/", "?", "#", "[", "]", " "));
         String encodingCharacters = "!*\"();:@$+,/?#[] ";
 
-        String decoded = "";
+        StringBuilder decoded = new StringBuilder(encodedMessage.length());
 
         for(int i=0; i<encodedMessage.length(); i++) {
-            if(i+1<encodedMessage.length()) {
-                if(encodedMessage.charAt(i) == '!' && encodingCharacters.indexOf(encodedMessage.charAt(i+1)) != -1) {
-                    decoded += encodedMessage.charAt(i+1);
-                    i += 1;
-                    continue;
-                }
+            char c = encodedMessage.charAt(i);
+            if(c == '!' && i+1<encodedMessage.length() && encodingCharacters.indexOf(encodedMessage.charAt(i+1)) != -1) {
+                c = encodedMessage.charAt(++i);
             }
-            decoded += encodedMessage.charAt(i);
+            decoded.append(c);
         }
 
-        //System.out.println("ENCODED: " + encodedMessage);
-        //System.out.println("DECODED: " + decoded);
-
-        return decoded;
+        return decoded.toString();
     }
 
     public String decodeDate(){
@@ -2,128 +2,356 @@ import java.net.*;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class WebServerProtocolThread extends Thread {
 
+    /**
+     * Deadlines for reading request headers and bodies, shared by every connection
+     */
+    static final TimerWheel DEADLINES = new TimerWheel(100, 512);
+
+    static {
+        DEADLINES.start("ConnectionDeadlines");
+    }
+
+    /**
+     * Empty body or trailer
+     */
+    private static final byte[] NO_BYTES = new byte[0];
+
     private Socket socket = null;
 
+    /**
+     * Bytes read from the client that have not been parsed yet
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192).flip();
+
+    /**
+     * Turns the bytes of the connection into requests
+     */
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    /**
+     * Responses to pipelined requests waiting to go out together, allocated when first needed
+     */
+    private ByteBuffer batch;
+
+    /**
+     * Set when the client failed to send its request before the deadline
+     */
+    private volatile boolean requestTimedOut = false;
+
     public WebServerProtocolThread(Socket socket) {
         super("WebServerProtocolThread");
         this.socket = socket;
     }
 
+    /**
+     * Reads one request from the client. The headers and the body each have to arrive
+     * within the request timeout; when a deadline passes the socket's input is shut down,
+     * which ends the blocked read. Batched responses are sent before the read blocks
+     * @param in the socket's input stream
+     * @param out buffered output stream used when the socket has no channel
+     * @return the request, or null if the client closed the connection or ran out of time
+     * @throws IOException if reading fails for any other reason
+     */
+    private HttpRequest readRequest(InputStream in, OutputStream out) throws IOException {
+        socket.setSoTimeout(ServerConfig.requestTimeout);
+        TimerWheel.Timeout deadline = DEADLINES.schedule(this::expireRequest, ServerConfig.requestTimeout);
+        boolean readingBody = false;
+        long start = System.nanoTime();
+        long parseNanos = 0;
+        try {
+            while (true) {
+                long parseStart = System.nanoTime();
+                HttpRequest request = parser.parse(buffer);
+                parseNanos += System.nanoTime() - parseStart;
+                if (request != null) {
+                    // recorded once per request, however many reads it took to arrive
+                    ServerMetrics.PARSE.record(parseNanos);
+                    ServerMetrics.READ.recordSince(start);
+                    return request;
+                }
+
+                // the body gets a deadline of its own once the headers are in
+                if (parser.readingBody() && !readingBody) {
+                    readingBody = true;
+                    deadline.cancel();
+                    deadline = DEADLINES.schedule(this::expireRequest, ServerConfig.requestTimeout);
+                }
+
+                // the client may be waiting for the answers to its earlier requests
+                writeBatched(out);
+
+                // the client closed the connection before finishing a request
+                if (fill(in) == -1) {
+                    return null;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            requestTimedOut = true;
+            return null;
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * Reads whatever the client has sent into the buffer, after any bytes not yet parsed
+     * @param in the socket's input stream
+     * @return number of bytes read, or -1 if the client closed the connection
+     * @throws IOException if reading fails
+     */
+    private int fill(InputStream in) throws IOException {
+        buffer.compact();
+        int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        return read;
+    }
+
+    /**
+     * Called by the deadline wheel when a request is taking too long to arrive
+     */
+    private void expireRequest() {
+        requestTimedOut = true;
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            // the socket is already closed
+        }
+    }
+
+    /**
+     * Sends bytes to the client. With a socket channel every buffer goes out in one
+     * gathering write, otherwise they are copied into the buffered output stream
+     * @param out buffered output stream used when the socket has no channel
+     * @param buffers bytes to send, in order
+     * @throws IOException if the client cannot be written to
+     */
+    private void writeAll(OutputStream out, ByteBuffer... buffers) throws IOException {
+        ServerMetrics.BYTES_SENT.add(remaining(buffers));
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            // a blocking write only returns early if the socket buffer filled up part way
+            while (remaining(buffers) > 0) {
+                channel.write(buffers);
+            }
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+        out.flush();
+    }
+
+    /**
+     * Copies a response into the batch if it fits
+     * @param headers status line and headers
+     * @param body body of the response
+     * @return true if the response was batched, false if it has to be sent now
+     */
+    private boolean addToBatch(ByteBuffer headers, ByteBuffer body) {
+        int length = headers.remaining() + body.remaining();
+        if (length > ServerConfig.pipelineBatchBytes) {
+            return false;
+        }
+        if (batch == null) {
+            batch = ByteBuffer.allocate(ServerConfig.pipelineBatchBytes);
+        }
+        if (length > batch.remaining()) {
+            return false;
+        }
+        batch.put(headers).put(body);
+        return true;
+    }
+
+    /**
+     * Sends the batched responses followed by more bytes, all in one write
+     * @param out buffered output stream used when the socket has no channel
+     * @param buffers bytes to send after the batch, in order
+     * @throws IOException if the client cannot be written to
+     */
+    private void writeBatched(OutputStream out, ByteBuffer... buffers) throws IOException {
+        if (batch == null || batch.position() == 0) {
+            if (buffers.length > 0) {
+                writeAll(out, buffers);
+            }
+            return;
+        }
+        ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+        all[0] = batch.flip();
+        System.arraycopy(buffers, 0, all, 1, buffers.length);
+        try {
+            writeAll(out, all);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Counts the bytes left to send
+     * @param buffers buffers to count
+     * @return total number of bytes remaining
+     */
+    private static long remaining(ByteBuffer[] buffers) {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        return total;
+    }
+
     public void run() {
 
         try (
-                // create output streams for the socket to send response through
+                // create output stream for the socket to send response through
                 // and create input stream to read request from socket
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                DataOutputStream bod = new DataOutputStream(socket.getOutputStream());
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                InputStream in = socket.getInputStream();
         ) {
 
             // initializing both objects needed to process request and respond
             Response response = new Response();
-            WebServerProtocol wsp = new WebServerProtocol();
-
-            // the initial time the connection was opened
-            long startTime = System.currentTimeMillis();
-
-            // this while loop times the user input
-            // if there is no user input within 5 seconds of opening the connect
-            // a 408 status response is sent and the connection is closed
-            while((System.currentTimeMillis() - startTime < 5000)) {
-
-                // checks to see if user has entered input
-                //if(in.ready()) {
-                if(in.ready()) {
-                    // takes user input request
-                    /*String request = in.readLine().trim() + " ";
-                    int contentLengthInt = 0;
-                    while(true) {
-                        String s = in.readLine();
-                        String contentLength = "Content-Length: ";
-                        if (s.startsWith(contentLength)) {
-                            contentLengthInt = Integer.parseInt(s.substring(contentLength.length()));
-                        }
-                        if (s.length() == 0) {
+            WebServerProtocol wsp = WebServerProtocol.SHARED;
+
+            // status line and headers of each response, reused across the connection
+            ByteBuffer headers = null;
+
+            // number of requests answered on this connection so far
+            int handled = 0;
+
+            // keeps serving requests until the client or a limit ends the connection
+            while (true) {
+
+                // the first request has 5 seconds to arrive, later ones the keep-alive idle timeout
+                int timeout = handled == 0 ? ServerConfig.requestTimeout : ServerConfig.keepAliveTimeout;
+
+                // blocks until the request starts arriving, the socket timeout ends the wait
+                // without polling so an idle connection uses no CPU
+                if (!buffer.hasRemaining()) {
+                    socket.setSoTimeout(timeout);
+                    try {
+                        if (fill(in) == -1) {
+                            // the client closed the connection
                             break;
                         }
-                        request += s + " ";
-                    }
-                    char[] params = new char[contentLengthInt];
-                    in.read(params);
-                    String parm = new String(params);
-                    System.out.println("Parm: " + parm);
-                    request += parm;*/
-
-                    String request = "";
-                    String line = in.readLine();
-                    while(!line.equals("")) {
-                        request = request + "\n" + line;
-                        line = in.readLine();
-
-                        if(line.equals("") && request.indexOf("POST") != -1 && in.ready()) {
-                            line = "\n" + in.readLine();
-                            request += line;
-                            //System.out.println(request);
-                            break;
+                    } catch (SocketTimeoutException e) {
+                        // sends 408 response if no request is received in 5 seconds,
+                        // an idle persistent connection is simply closed
+                        if (handled == 0) {
+                            writeAll(out, ByteBuffer.wrap(ResponseEncoder.REQUEST_TIMEOUT));
                         }
+                        break;
                     }
+                }
 
-                    // processes the request and sets the response object's fields accordingly
-                    response = wsp.processInput(request, PartialHTTP1Server.SERVER_PORT);
+                // takes user input request, which has to arrive in full before its deadline
+                // so a client trickling bytes cannot hold the connection forever
+                HttpRequest request = readRequest(in, out);
 
-                    // sends the status line and headers to output stream and flushes stream
-                    response.toString(out);
-                    out.flush();
+                if (request == null) {
+                    // sends 408 response if the request did not arrive in time
+                    if (requestTimedOut) {
+                        writeAll(out, ByteBuffer.wrap(ResponseEncoder.REQUEST_TIMEOUT));
+                    }
+                    break;
+                }
 
-                    // not really sure if the if statement is necessary
-                    // sends the body of the response to output stream and flushes stream
-                    if(response.allow && response.body != null) {
-                        bod.write(response.body);
+                // requests in flight are limited rather than connections, so an idle persistent
+                // connection holds no place. One over the limit is answered with 503 after the
+                // batched responses and the connection is closed
+                if (!PartialHTTP1Server.LIMITER.tryAcquire()) {
+                    request.releaseBody();
+                    writeBatched(out, ByteBuffer.wrap(ResponseEncoder.SERVICE_UNAVAILABLE));
+                    break;
+                }
+
+                try {
+                    // the latency the concurrency limit follows runs from here until the response is written
+                    long started = System.nanoTime();
+
+                    // processes the request and sets the response object's fields accordingly
+                    response = wsp.processRequest(request, PartialHTTP1Server.SERVER_PORT);
+                    handled++;
+
+                    // closes the connection once it has served its share of requests
+                    if (handled >= ServerConfig.maxKeepAliveRequests) {
+                        response.setKeepAlive(false);
                     }
 
-                    // additional formatting for response and flushing output streams
-                    out.write("\r\n\r\n");
-                    out.flush();
-                    bod.flush();
+                    // encodes the status line and headers
+                    long writeStart = System.nanoTime();
+                    headers = ResponseEncoder.encode(response, headers);
 
-                    // makes the thread wait a quarter second before closing all streams and socket
-                    try {
-                        sleep(250);
-                    } catch (Exception e) {
-                        System.err.println("Error: Could not force the current thread to sleep");
+                    // additional formatting for response, left out on persistent connections
+                    // since the client would read it as the start of the next response, and
+                    // after a body of unknown length since it would read it as part of the body
+                    boolean unknownLength = response.content != null && response.content.length() < 0;
+                    ByteBuffer trailer = ByteBuffer.wrap(response.keepAlive || unknownLength ? NO_BYTES : ResponseEncoder.TRAILER);
+
+                    if (response.content == null) {
+                        // sends the headers, body and trailer together in a single write, after any
+                        // batched responses. While the client has already sent more requests the
+                        // response joins the batch instead, so they all go out in one write
+                        ByteBuffer body = ByteBuffer.wrap(response.allow && response.body != null ? response.body : NO_BYTES);
+                        if (!buffer.hasRemaining() || !response.keepAlive || !addToBatch(headers, body)) {
+                            writeBatched(out, headers, body, trailer);
+                        }
+                    } else {
+                        // streams a file body straight to the socket after the headers, which
+                        // lets the operating system copy it without passing through the heap,
+                        // or a CGI body as the script produces it
+                        try {
+                            writeBatched(out, headers);
+                            WritableByteChannel channel = socket.getChannel() != null
+                                    ? socket.getChannel() : Channels.newChannel(out);
+                            while (!response.content.writeTo(channel)) {
+                                // a blocking channel only stops short when the write is interrupted
+                            }
+                            out.flush();
+                            if (response.content.length() >= 0) {
+                                ServerMetrics.BYTES_SENT.add(response.content.length());
+                            }
+                        } finally {
+                            response.closeContent();
+                        }
+                        writeAll(out, trailer);
                     }
+                    long finished = System.nanoTime();
+                    ServerMetrics.WRITE.record(finished - writeStart);
+                    ServerMetrics.REQUEST.record(finished - started);
+                    ServerMetrics.countRequest(request.method, response.statusCode);
+                    PartialHTTP1Server.LIMITER.sample(finished - started);
+                } finally {
+                    PartialHTTP1Server.LIMITER.release();
+                }
 
-                    // closes all input/output streams and the socket
-                    out.close();
-                    bod.close();
-                    socket.close();
-                    return;
+                if (!response.keepAlive) {
+                    break;
                 }
             }
-            // sends 408 response if no request is received in 5 seconds
-            out.write("HTTP/1.0 408 Request Timeout\r\n\r\n");
-            out.flush();
-            bod.flush();
-
-            // makes the thread wait a quarter second before closing all streams and socket
-            try {
-                sleep(250);
-            } catch (Exception e) {
-                // not sure what to do here
-                System.out.println("something went wrong");
-            }
+
+            // lets the client read everything sent before the socket closes
+            socket.shutdownOutput();
 
             // closes all input/output streams and the socket
             in.close();
-            bod.close();
             out.close();
             socket.close();
 
         } catch (IOException e) {
             System.out.print("HTTP/1.0 500 Internal Server Error\r\n\r\n");
+        } finally {
+            // frees whatever part of a request body was read before the connection closed
+            parser.discard();
         }
     }
 
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporary directory of files for the benchmarks to request. The server resolves
+ * request targets against the working directory, so the directory is created inside
+ * it and requests name it as their first path segment
+ */
+final class DocumentRoot implements AutoCloseable {
+
+    /**
+     * Directory holding the files, relative to the working directory
+     */
+    final Path directory;
+
+    /**
+     * Request target prefix of the files, e.g. "/bench-docroot123"
+     */
+    final String prefix;
+
+    DocumentRoot() throws IOException {
+        this.directory = Files.createTempDirectory(Path.of(""), "bench-docroot");
+        this.prefix = "/" + directory.getFileName();
+
+        //a typical small page, and a form target that is not a CGI script
+        byte[] page = new byte[4096];
+        Arrays.fill(page, (byte) 'x');
+        byte[] head = "<html><head><title>bench</title></head><body>".getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(head, 0, page, 0, head.length);
+        Files.write(directory.resolve("index.html"), page);
+        Files.write(directory.resolve("form.txt"), "form".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
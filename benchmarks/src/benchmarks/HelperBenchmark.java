@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The small checks every request goes through: date comparison, form decoding and the
+ * version and method checks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelperBenchmark {
+
+    private Object protocol;
+
+    //fields rather than constants, so the JIT cannot fold the work away
+    private String conditionDate = "Sat, 21 Jul 2018 10:00:00 GMT";
+    private String lastModified = "Tue, 14 Jul 2015 18:00:00 GMT";
+    private String encoded = "name=Jane!+Doe&comment=Hello!,!+world!!&path=!/usr!/local!/bin&q=a!?b!#c";
+    private String version = "HTTP/1.1";
+    private String command = "GET";
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        protocol = Server.newProtocol();
+    }
+
+    @Benchmark
+    public boolean isModified() throws Throwable {
+        return Server.isModified(protocol, conditionDate, lastModified);
+    }
+
+    @Benchmark
+    public String decodeMessage() throws Throwable {
+        return Server.decodeMessage(protocol, encoded);
+    }
+
+    @Benchmark
+    public int checkVersionFormat() throws Throwable {
+        return Server.checkVersionFormat(protocol, version);
+    }
+
+    @Benchmark
+    public int checkCommandFormat() throws Throwable {
+        return Server.checkCommandFormat(protocol, command);
+    }
+}
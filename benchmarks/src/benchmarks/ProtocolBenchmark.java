@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds responses the way a connection thread does, from the raw request text to the
+ * filled in Response, against a temporary document root, and parses and decodes a form
+ * post the way it is prepared for a CGI script. Run with -prof gc to see how much each
+ * request allocates
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final int PORT = 8080;
+
+    private static final String HEADERS = "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Connection: keep-alive\r\n";
+
+    private DocumentRoot root;
+    private Object protocol;
+
+    private String get;
+    private String head;
+    private String conditional;
+    private String notFound;
+    private String post;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = new DocumentRoot();
+        protocol = Server.newProtocol();
+
+        get = "GET " + root.prefix + "/index.html HTTP/1.1\r\n" + HEADERS + "\r\n";
+        head = "HEAD " + root.prefix + "/index.html HTTP/1.1\r\n" + HEADERS + "\r\n";
+        conditional = "GET " + root.prefix + "/index.html HTTP/1.1\r\n" + HEADERS
+                + "If-Modified-Since: Sat, 01 Jan 2050 00:00:00 GMT\r\n\r\n";
+        notFound = "GET " + root.prefix + "/missing.html HTTP/1.1\r\n" + HEADERS + "\r\n";
+
+        //a form posted to a script, parsed and decoded without the script being started
+        String body = "name=Jane!+Doe&comment=Hello!,!+world!!&tags=a!;b!;c";
+        post = "POST " + root.prefix + "/cgi_bin/form.cgi HTTP/1.1\r\n" + HEADERS
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        root.close();
+    }
+
+    @Benchmark
+    public Object get() throws Throwable {
+        return Server.processInput(protocol, get, PORT);
+    }
+
+    @Benchmark
+    public Object head() throws Throwable {
+        return Server.processInput(protocol, head, PORT);
+    }
+
+    @Benchmark
+    public Object conditionalNotModified() throws Throwable {
+        return Server.processInput(protocol, conditional, PORT);
+    }
+
+    @Benchmark
+    public Object notFound() throws Throwable {
+        return Server.processInput(protocol, notFound, PORT);
+    }
+
+    @Benchmark
+    public Object postParse() throws Throwable {
+        Object request = Server.parse(post);
+        Object decoded = Server.decodeForm(Server.body(request));
+        Server.releaseBody(request);
+        Server.release(decoded);
+        return decoded;
+    }
+}
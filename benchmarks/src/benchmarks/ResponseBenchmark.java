@@ -0,0 +1,91 @@
+package benchmarks;
+
+import java.io.CharArrayWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turns a finished response into its status line and headers, both through the
+ * PrintWriter methods on Response and through the pre-encoded ResponseEncoder the
+ * connection handlers use
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    private DocumentRoot root;
+    private Object getResponse;
+    private Object postResponse;
+
+    private final CharArrayWriter chars = new CharArrayWriter(1024);
+    private final PrintWriter out = new PrintWriter(chars);
+    private ByteBuffer headers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = new DocumentRoot();
+        getResponse = Server.processInput(Server.newProtocol(),
+                "GET " + root.prefix + "/index.html HTTP/1.1\r\nHost: localhost\r\n\r\n", 8080);
+
+        //the response a CGI script's output is sent with
+        postResponse = Server.newResponse();
+        Server.set(postResponse, "isPost", true);
+        Server.set(postResponse, "statusCode", 200);
+        Server.set(postResponse, "type", "text/html");
+        Server.set(postResponse, "length", "42");
+        Server.set(postResponse, "version", "HTTP/1.1");
+        Server.set(postResponse, "keepAlive", true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Server.closeContent(getResponse);
+        root.close();
+    }
+
+    @Benchmark
+    public int toStringGet() throws Throwable {
+        chars.reset();
+        Server.toString(getResponse, out);
+        out.flush();
+        return chars.size();
+    }
+
+    @Benchmark
+    public int postToString() throws Throwable {
+        chars.reset();
+        Server.postToString(postResponse, out);
+        out.flush();
+        return chars.size();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGet() throws Throwable {
+        headers = Server.encode(getResponse, headers);
+        return headers;
+    }
+
+    @Benchmark
+    public ByteBuffer encodePost() throws Throwable {
+        headers = Server.encode(postResponse, headers);
+        return headers;
+    }
+}
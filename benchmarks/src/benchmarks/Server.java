@@ -0,0 +1,160 @@
+package benchmarks;
+
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Calls into the server's classes, which live in the default package and so cannot be
+ * imported from here. JMH does not accept benchmarks in the default package, so the
+ * benchmarks go through these method handles instead; being static final, they are
+ * inlined by the JIT and cost about as much as a direct call
+ */
+final class Server {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static final Class<?> PROTOCOL = find("WebServerProtocol");
+    static final Class<?> RESPONSE = find("Response");
+    private static final Class<?> REQUEST = find("HttpRequest");
+    private static final Class<?> BODY = find("RequestBody");
+    private static final Class<?> ENCODER = find("ResponseEncoder");
+
+    private static final MethodHandle NEW_PROTOCOL = constructor(PROTOCOL);
+    private static final MethodHandle PROCESS_INPUT = method(PROTOCOL, "processInput", RESPONSE, String.class, int.class);
+    private static final MethodHandle PARSE = staticMethod(PROTOCOL, "parse", REQUEST, String.class);
+    private static final MethodHandle IS_MODIFIED = method(PROTOCOL, "isModified", boolean.class, String.class, String.class);
+    private static final MethodHandle DECODE_MESSAGE = method(PROTOCOL, "decodeMessage", String.class, String.class);
+    private static final MethodHandle CHECK_VERSION = method(PROTOCOL, "checkVersionFormat", int.class, String.class);
+    private static final MethodHandle CHECK_COMMAND = method(PROTOCOL, "checkCommandFormat", int.class, String.class);
+
+    private static final MethodHandle REQUEST_BODY = getter(REQUEST, "body", BODY);
+    private static final MethodHandle RELEASE_REQUEST_BODY = method(REQUEST, "releaseBody", void.class);
+    private static final MethodHandle DECODE_FORM = method(BODY, "decodeForm", BODY);
+    private static final MethodHandle RELEASE_BODY = method(BODY, "release", void.class);
+
+    private static final MethodHandle NEW_RESPONSE = constructor(RESPONSE);
+    private static final MethodHandle TO_STRING = method(RESPONSE, "toString", void.class, PrintWriter.class);
+    private static final MethodHandle POST_TO_STRING = method(RESPONSE, "postToString", void.class, PrintWriter.class);
+    private static final MethodHandle CLOSE_CONTENT = method(RESPONSE, "closeContent", void.class);
+    private static final MethodHandle ENCODE = staticMethod(ENCODER, "encode", ByteBuffer.class, RESPONSE, ByteBuffer.class);
+
+    private Server() {
+    }
+
+    static Object newProtocol() throws Throwable {
+        return NEW_PROTOCOL.invoke();
+    }
+
+    static Object processInput(Object protocol, String request, int port) throws Throwable {
+        return PROCESS_INPUT.invoke(protocol, request, port);
+    }
+
+    static Object parse(String request) throws Throwable {
+        return PARSE.invoke(request);
+    }
+
+    static boolean isModified(Object protocol, String conditionDate, String lastModified) throws Throwable {
+        return (boolean) IS_MODIFIED.invoke(protocol, conditionDate, lastModified);
+    }
+
+    static String decodeMessage(Object protocol, String encoded) throws Throwable {
+        return (String) DECODE_MESSAGE.invoke(protocol, encoded);
+    }
+
+    static int checkVersionFormat(Object protocol, String version) throws Throwable {
+        return (int) CHECK_VERSION.invoke(protocol, version);
+    }
+
+    static int checkCommandFormat(Object protocol, String command) throws Throwable {
+        return (int) CHECK_COMMAND.invoke(protocol, command);
+    }
+
+    static Object body(Object request) throws Throwable {
+        return REQUEST_BODY.invoke(request);
+    }
+
+    static void releaseBody(Object request) throws Throwable {
+        RELEASE_REQUEST_BODY.invoke(request);
+    }
+
+    static Object decodeForm(Object body) throws Throwable {
+        return DECODE_FORM.invoke(body);
+    }
+
+    static void release(Object body) throws Throwable {
+        RELEASE_BODY.invoke(body);
+    }
+
+    static Object newResponse() throws Throwable {
+        return NEW_RESPONSE.invoke();
+    }
+
+    static void toString(Object response, PrintWriter out) throws Throwable {
+        TO_STRING.invoke(response, out);
+    }
+
+    static void postToString(Object response, PrintWriter out) throws Throwable {
+        POST_TO_STRING.invoke(response, out);
+    }
+
+    static void closeContent(Object response) throws Throwable {
+        CLOSE_CONTENT.invoke(response);
+    }
+
+    static ByteBuffer encode(Object response, ByteBuffer buffer) throws Throwable {
+        return (ByteBuffer) ENCODE.invoke(response, buffer);
+    }
+
+    /**
+     * Sets a public field of a response, e.g. "isPost"
+     * @param response response to change
+     * @param name name of the field
+     * @param value value to set
+     */
+    static void set(Object response, String name, Object value) throws Throwable {
+        LOOKUP.findSetter(RESPONSE, name, RESPONSE.getField(name).getType()).invoke(response, value);
+    }
+
+    private static Class<?> find(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server classes must be on the classpath: " + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type) {
+        try {
+            return LOOKUP.findConstructor(type, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return LOOKUP.findVirtual(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> type, String name, Class<?> fieldType) {
+        try {
+            return LOOKUP.findGetter(type, name, fieldType);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return LOOKUP.findStatic(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}